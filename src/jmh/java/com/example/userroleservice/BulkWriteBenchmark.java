@@ -0,0 +1,89 @@
+package com.example.userroleservice;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Users created one {@link UserService#addNewUser} at a time against one {@link UserService#saveAll}
+ * of as many, in users per second, against in-memory repositories. The numbers cover role snapshots,
+ * change logging and the per-write plumbing the bulk path saves; the load test compares the two
+ * against MongoDB, where the round trips saved count most.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkWriteBenchmark {
+
+    private static final int USERS = 1000;
+    private static final int ROLES_PER_USER = 3;
+
+    private InMemoryUserRepository userRepository;
+    private UserService userService;
+    private List<User> users;
+
+    @Setup
+    public void setUp() {
+        List<Role> roles = IntStream.range(0, ROLES_PER_USER)
+                .mapToObj(i -> Role.builder().id("role-" + i).rolename("R" + i).description("Beskrivning av roll R" + i).build())
+                .collect(Collectors.toList());
+        userRepository = new InMemoryUserRepository(false);
+        InMemoryRoleRepository roleRepository = new InMemoryRoleRepository();
+        roleRepository.insert(roles).blockLast();
+        RoleMembershipIndex membership = new RoleMembershipIndex(USERS, 300);
+        ChangeLog changes = new InMemoryChangeLog(USERS);
+        RoleService roleService = new RoleService(roleRepository, userRepository, new RoleCache(100, 300), membership, changes, USERS);
+        userService = new UserService(userRepository, roleService, membership, changes, USERS);
+    }
+
+    // Every invocation creates the same users again, from new objects since the writes modify them
+    @Setup(Level.Invocation)
+    public void prepareUsers() {
+        userRepository.deleteAll().block();
+        users = IntStream.range(0, USERS)
+                .mapToObj(i -> User.builder()
+                        .userId(String.format("user-%06d", i))
+                        .name("Användare " + i)
+                        .roles(IntStream.range(0, ROLES_PER_USER)
+                                .mapToObj(r -> Role.builder().id("role-" + r).build())
+                                .collect(Collectors.toList()))
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public Object singleWrites() {
+        Object last = null;
+        for (User user : users) {
+            last = userService.addNewUser(Mono.just(user)).block();
+        }
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public Object bulkWrites() {
+        return userService.saveAll(Flux.fromIterable(users)).blockLast();
+    }
+}
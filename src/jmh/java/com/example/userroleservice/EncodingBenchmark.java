@@ -0,0 +1,84 @@
+package com.example.userroleservice;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Per-response costs outside the services: copying, resolving roles, the location header and JSON
+ * encoding. Run with {@code -prof gc} (the profile's default) to compare the allocation rates of a
+ * deep copy and of a role resolution, which builds a new user sharing the resolved roles instead of
+ * copying them. The resolution reads a user holding role references, as users are read, and leaves
+ * it as it is, so every invocation resolves the same references.
+ * Benchmarks return {@code Object} because the generated harness lives in another package.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int roleCount;
+
+    private final UserRoleServiceApplication application = new UserRoleServiceApplication();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private User user;
+    private User referencing;
+    private Map<String, Role> rolesById;
+
+    @Setup
+    public void setUp() {
+        user = User.builder()
+                .userId("user1")
+                .name("Karl Benknäckare")
+                .roles(IntStream.range(0, roleCount)
+                        .mapToObj(i -> Role.builder().id("role-" + i).rolename("R" + i).description("Beskrivning av roll R" + i).build())
+                        .collect(Collectors.toList()))
+                .build();
+        rolesById = user.getRoles().stream().collect(Collectors.toMap(Role::getId, Function.identity()));
+        referencing = user.toBuilder()
+                .roles(user.getRoles().stream().map(role -> Role.builder().id(role.getId()).build()).collect(Collectors.toList()))
+                .build();
+    }
+
+    @Benchmark
+    public Object userCopy() {
+        return user.copy();
+    }
+
+    @Benchmark
+    public Object userResolveRoles() {
+        return referencing.withResolvedRoles(rolesById);
+    }
+
+    @Benchmark
+    public URI userLocation() {
+        return application.location(user);
+    }
+
+    @Benchmark
+    public byte[] userToJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(user);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.userroleservice;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link UserService} and {@link RoleService} reads against in-memory repositories, so the numbers
+ * cover role resolution, caching and the reactive plumbing but no database. Lookups by id go through
+ * {@link CoalescingLoader}, which loads an id at once when no other load is running, so these
+ * single-threaded runs measure no batching and no thread hop.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceBenchmark {
+
+    @Param({"1000"})
+    public int userCount;
+
+    @Param({"1", "10", "100"})
+    public int rolesPerUser;
+
+    // The benchmarks only read, so nothing is logged
+    private static final ChangeLog NO_CHANGES = new ChangeLog() {
+        @Override
+        public Mono<Void> record(List<Change> changes) {
+            return Mono.empty();
+        }
+
+        @Override
+        public Flux<Change> findSince(String token, int limit) {
+            return Flux.empty();
+        }
+
+        @Override
+        public Mono<Boolean> isRetained(String token) {
+            return Mono.just(true);
+        }
+
+        @Override
+        public Mono<String> latestToken() {
+            return Mono.empty();
+        }
+
+        @Override
+        public Flux<Change> follow(String token) {
+            return Flux.empty();
+        }
+    };
+
+    private UserService userService;
+    private RoleService roleService;
+
+    @Setup
+    public void setUp() {
+        List<Role> roles = IntStream.range(0, rolesPerUser)
+                .mapToObj(i -> Role.builder().id("role-" + i).rolename("R" + i).description("Beskrivning av roll R" + i).build())
+                .collect(Collectors.toList());
+        List<Role> roleRefs = roles.stream()
+                .map(role -> Role.builder().id(role.getId()).build())
+                .collect(Collectors.toList());
+        List<User> users = IntStream.range(0, userCount)
+                .mapToObj(i -> User.builder().userId(String.format("user-%06d", i)).name("Användare " + i).roles(roleRefs).build())
+                .collect(Collectors.toList());
+
+        InMemoryUserRepository userRepository = new InMemoryUserRepository(false);
+        InMemoryRoleRepository roleRepository = new InMemoryRoleRepository();
+        userRepository.insert(users).blockLast();
+        roleRepository.insert(roles).blockLast();
+        RoleMembershipIndex membership = new RoleMembershipIndex(userCount, 300);
+        roleService = new RoleService(roleRepository, userRepository, new RoleCache(10000, 300), membership, NO_CHANGES, 1000);
+        userService = new UserService(userRepository, roleService, membership, NO_CHANGES, 1000);
+    }
+
+    @Benchmark
+    public Object userFindById() {
+        return userService.findById("user-000042").block();
+    }
+
+    @Benchmark
+    public Object userFindPage() {
+        return userService.findPage(null, 100).collectList().block();
+    }
+
+    @Benchmark
+    public Object userHasRole() {
+        return userService.hasRole("user-000042", "role-0").block();
+    }
+
+    @Benchmark
+    public Object roleFindById() {
+        return roleService.findById("role-0").block();
+    }
+
+    @Benchmark
+    public Object roleFindAll() {
+        return roleService.findAll().collectList().block();
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.userroleservice;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encoding and decoding a user with its roles in each wire format the routes negotiate. The payload
+ * size of each format is printed once per trial, as JMH has no way to report it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireFormatBenchmark {
+
+    @Param({"json", "smile", "cbor"})
+    public String format;
+
+    @Param({"10", "100", "1000"})
+    public int roleCount;
+
+    private ObjectMapper objectMapper;
+    private User user;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (format) {
+            case "smile":
+                objectMapper = new ObjectMapper(new SmileFactory());
+                break;
+            case "cbor":
+                objectMapper = new ObjectMapper(new CBORFactory());
+                break;
+            default:
+                objectMapper = new ObjectMapper();
+        }
+        user = User.builder()
+                .userId("user1")
+                .name("Karl Benknäckare")
+                .roles(IntStream.range(0, roleCount)
+                        .mapToObj(i -> Role.builder().id("role-" + i).rolename("R" + i).description("Beskrivning av roll R" + i).build())
+                        .collect(Collectors.toList()))
+                .build();
+        payload = objectMapper.writeValueAsBytes(user);
+        System.out.printf("%n%s payload of a user with %d roles: %d bytes%n", format, roleCount, payload.length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return objectMapper.writeValueAsBytes(user);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return objectMapper.readValue(payload, User.class);
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.userroleservice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Boots the service with the {@code loadtest} profile against an embedded MongoDB, seeds it and
+ * drives mixed traffic at a fixed arrival rate. Requests are started on schedule whether or not
+ * earlier ones have completed, so latencies include queueing in the service. Throughput and
+ * p50/p99/p999 latency per route are written as JSON. Requests shed by admission control (429 or
+ * 503) are counted apart and left out of the latencies, so a rate beyond capacity shows how the
+ * admitted traffic fares under overload.
+ *
+ * <p>After the mixed traffic, {@code loadtest.write-users} users are created one request at a time
+ * and then as many in one bulk request, and both write rates are reported.
+ *
+ * <p>Settings are system properties: {@code loadtest.rate} (requests/s), {@code loadtest.duration}
+ * (seconds), {@code loadtest.users}, {@code loadtest.roles}, {@code loadtest.write-users} (0 skips
+ * the writes) and {@code loadtest.report} (file).
+ */
+public final class LoadTest {
+
+    private static final Duration TICK = Duration.ofMillis(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    private final WebClient client;
+    private final int userCount;
+    private final int roleCount;
+    private final List<Operation> operations;
+    private final int totalWeight;
+
+    private LoadTest(WebClient client, int userCount, int roleCount) {
+        this.client = client;
+        this.userCount = userCount;
+        this.roleCount = roleCount;
+        this.operations = Arrays.asList(
+                new Operation("GET /api/user/{id}", 60, () -> client.get()
+                        .uri("/api/user/{id}", randomUserId())
+                        .retrieve().bodyToMono(String.class)),
+                new Operation("GET /api/user", 10, () -> client.get()
+                        .uri("/api/user?limit=100&after={after}", randomUserId())
+                        .retrieve().bodyToMono(String.class)),
+                new Operation("GET /api/user/{id}/has-role/{roleId}", 15, () -> client.get()
+                        .uri("/api/user/{id}/has-role/{roleId}", randomUserId(), randomRoleId())
+                        .retrieve().bodyToMono(String.class)),
+                new Operation("GET /api/role/{id}", 5, () -> client.get()
+                        .uri("/api/role/{id}", randomRoleId())
+                        .retrieve().bodyToMono(String.class)),
+                new Operation("PUT /api/user/{id}", 5, () -> {
+                    String userId = randomUserId();
+                    return client.put()
+                            .uri("/api/user/{id}", userId)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .syncBody(User.builder()
+                                    .userId(userId)
+                                    .name("Lasttestanvändare " + System.nanoTime())
+                                    .roles(Collections.singletonList(Role.builder().id(randomRoleId()).build()))
+                                    .build())
+                            .retrieve().bodyToMono(String.class);
+                }),
+                new Operation("PATCH /api/user/{id}", 5, () -> client.patch()
+                        .uri("/api/user/{id}", randomUserId())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .syncBody(UserPatch.builder().addRoles(Collections.singletonList(randomRoleId())).build())
+                        .retrieve().bodyToMono(String.class)));
+        this.totalWeight = operations.stream().mapToInt(operation -> operation.weight).sum();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rate = Integer.getInteger("loadtest.rate", 500);
+        int durationSeconds = Integer.getInteger("loadtest.duration", 60);
+        int users = Integer.getInteger("loadtest.users", 10000);
+        int roles = Integer.getInteger("loadtest.roles", 100);
+        int writeUsers = Integer.getInteger("loadtest.write-users", 1000);
+        Path report = Paths.get(System.getProperty("loadtest.report", "target/loadtest-report.json"));
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(UserRoleServiceApplication.class)
+                .profiles("loadtest")
+                .properties("server.port=0", "loadtest.users=" + users, "loadtest.roles=" + roles)
+                .run(args);
+        try {
+            int port = context.getEnvironment().getProperty("local.server.port", Integer.class);
+            LoadTest loadTest = new LoadTest(WebClient.create("http://localhost:" + port), users, roles);
+            Map<String, Object> result = loadTest.run(rate, Duration.ofSeconds(durationSeconds));
+            if (writeUsers > 0) {
+                result.put("writes", loadTest.writes(writeUsers));
+            }
+
+            Files.createDirectories(report.toAbsolutePath().getParent());
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(report.toFile(), result);
+            System.out.println("Load test report written to " + report.toAbsolutePath());
+        } finally {
+            context.close();
+        }
+    }
+
+    private Map<String, Object> run(int rate, Duration duration) {
+        long ticks = duration.toMillis() / TICK.toMillis();
+        double arrivalsPerTick = rate * TICK.toMillis() / 1000.0;
+
+        long start = System.nanoTime();
+        Flux.interval(TICK)
+                .take(ticks)
+                .flatMap(tick -> Flux.range(0, arrivals(tick, arrivalsPerTick)).flatMap(i -> fire()), Integer.MAX_VALUE)
+                .blockLast();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> routes = new LinkedHashMap<>();
+        operations.forEach(operation -> routes.put(operation.route, operation.report(elapsedSeconds)));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("targetRate", rate);
+        result.put("durationSeconds", elapsedSeconds);
+        result.put("users", userCount);
+        result.put("roles", roleCount);
+        result.put("routes", routes);
+        return result;
+    }
+
+    // Single creates are sent one after the other, so their rate is bound by the round trips bulk writes save
+    private Map<String, Object> writes(int count) {
+        long start = System.nanoTime();
+        Flux.range(0, count)
+                .concatMap(i -> client.post()
+                        .uri("/api/user")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .syncBody(User.builder().userId(String.format("lt-single-%07d", i)).name("Lasttestanvändare").build())
+                        .retrieve().bodyToMono(String.class))
+                .blockLast();
+        long single = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        client.post()
+                .uri("/api/user/_bulk")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Flux.range(0, count)
+                        .map(i -> User.builder().userId(String.format("lt-bulk-%07d", i)).name("Lasttestanvändare").build()), User.class)
+                .retrieve().bodyToMono(String.class)
+                .block();
+        long bulk = System.nanoTime() - start;
+
+        Map<String, Object> writes = new LinkedHashMap<>();
+        writes.put("users", count);
+        writes.put("singleUsersPerSecond", count * 1e9 / single);
+        writes.put("bulkUsersPerSecond", count * 1e9 / bulk);
+        return writes;
+    }
+
+    // Spreads a fractional number of arrivals per tick evenly over the ticks
+    private static int arrivals(long tick, double arrivalsPerTick) {
+        return (int) (Math.floor((tick + 1) * arrivalsPerTick) - Math.floor(tick * arrivalsPerTick));
+    }
+
+    private Mono<Void> fire() {
+        Operation operation = pick();
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return operation.request.get()
+                    .timeout(REQUEST_TIMEOUT)
+                    .then(Mono.fromRunnable(() -> operation.recordSuccess(System.nanoTime() - start)))
+                    .onErrorResume(WebClientResponseException.class, e -> Mono.fromRunnable(isShed(e)
+                            ? operation::recordRejected
+                            : operation::recordError))
+                    .onErrorResume(e -> Mono.fromRunnable(operation::recordError));
+        }).then();
+    }
+
+    private static boolean isShed(WebClientResponseException e) {
+        return e.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS || e.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private Operation pick() {
+        int choice = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Operation operation : operations) {
+            choice -= operation.weight;
+            if (choice < 0) {
+                return operation;
+            }
+        }
+        return operations.get(operations.size() - 1);
+    }
+
+    private String randomUserId() {
+        return String.format("lt-user-%07d", ThreadLocalRandom.current().nextInt(userCount));
+    }
+
+    private String randomRoleId() {
+        return "lt-role-" + ThreadLocalRandom.current().nextInt(roleCount);
+    }
+
+    private static final class Operation {
+        private final String route;
+        private final int weight;
+        private final Supplier<Mono<String>> request;
+        private final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Operation(String route, int weight, Supplier<Mono<String>> request) {
+            this.route = route;
+            this.weight = weight;
+            this.request = request;
+        }
+
+        private void recordSuccess(long nanos) {
+            latencies.add(nanos);
+        }
+
+        private void recordError() {
+            errors.incrementAndGet();
+        }
+
+        private void recordRejected() {
+            rejected.incrementAndGet();
+        }
+
+        private Map<String, Object> report(double elapsedSeconds) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("count", sorted.size());
+            report.put("errors", errors.get());
+            report.put("rejected", rejected.get());
+            report.put("throughput", sorted.size() / elapsedSeconds);
+            report.put("p50Ms", percentileMillis(sorted, 0.50));
+            report.put("p99Ms", percentileMillis(sorted, 0.99));
+            report.put("p999Ms", percentileMillis(sorted, 0.999));
+            return report;
+        }
+
+        private static Double percentileMillis(List<Long> sorted, double percentile) {
+            if (sorted.isEmpty()) {
+                return null;
+            }
+            int index = Math.max(0, (int) Math.ceil(percentile * sorted.size()) - 1);
+            return sorted.get(index) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.userroleservice;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit that follows latency, after the gradient algorithm of Netflix's
+ * concurrency-limits. A short-term average of request latency is compared with a long-term one;
+ * while they agree the limit grows by its square root, and as the short-term latency rises above
+ * {@code tolerance} times the long-term one the limit shrinks, down to half per adjustment. The
+ * limit only moves while at least half of it is in use, and stays within {@code minLimit} and
+ * {@code maxLimit}.
+ */
+class AdaptiveConcurrencyLimit {
+
+    private static final double SHORT_SMOOTHING = 0.1;
+    private static final double LONG_SMOOTHING = 1.0 / 600;
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private double shortLatency;
+    private double longLatency;
+
+    AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    // Never waits; a caller that isn't admitted should be turned away
+    boolean tryAcquire() {
+        if (inFlight.incrementAndGet() > (int) limit) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // Requests that were cancelled or are long-lived by nature release without a latency sample
+    void release(long latencyNanos, boolean sample) {
+        int released = inFlight.getAndDecrement();
+        if (sample) {
+            adjust(latencyNanos, released);
+        }
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    private synchronized void adjust(long latencyNanos, int inFlightAtRelease) {
+        if (longLatency == 0) {
+            shortLatency = latencyNanos;
+            longLatency = latencyNanos;
+            return;
+        }
+        shortLatency += (latencyNanos - shortLatency) * SHORT_SMOOTHING;
+        longLatency += (latencyNanos - longLatency) * LONG_SMOOTHING;
+        // After an overload the long-term average is high; let it come down with the short-term one
+        if (longLatency > 2 * shortLatency) {
+            longLatency *= 0.95;
+        }
+        if (inFlightAtRelease < limit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / shortLatency));
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING));
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.userroleservice;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Sheds load before it reaches the routes instead of queueing it. A client over its rate (see
+ * {@link ClientRateLimiter}) is answered 429, and a request beyond its route's concurrency limit
+ * (see {@link AdaptiveConcurrencyLimit}) 503, both with a {@code Retry-After}. Streaming requests
+ * are long-lived, so they have a fixed limit of their own per route and don't adjust the adaptive one.
+ * <p>
+ * Admission control is off unless {@code admission.enabled} is set.
+ * Clients are told apart by {@code admission.client-header} when set, by remote address otherwise.
+ * {@code admission.route-limits} caps single routes, as in {@code POST /api/user/_bulk=4,GET /api/user=100}.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+class AdmissionControlWebFilter implements WebFilter {
+
+    private static final String STREAMING = " (streaming)";
+
+    private final boolean enabled;
+    private final ClientRateLimiter rateLimiter;
+    private final String clientHeader;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final int streamingLimit;
+    private final Map<String, Integer> routeLimits;
+    private final Map<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    private final MeterRegistry registry;
+
+    AdmissionControlWebFilter(MeterRegistry registry,
+                              @Value("${admission.enabled:false}") boolean enabled,
+                              @Value("${admission.client-rate:0}") double clientRate,
+                              @Value("${admission.client-burst:0}") double clientBurst,
+                              @Value("${admission.max-clients:100000}") int maxClients,
+                              @Value("${admission.client-header:}") String clientHeader,
+                              @Value("${admission.concurrency.initial-limit:50}") int initialLimit,
+                              @Value("${admission.concurrency.min-limit:10}") int minLimit,
+                              @Value("${admission.concurrency.max-limit:1000}") int maxLimit,
+                              @Value("${admission.concurrency.tolerance:1.5}") double tolerance,
+                              @Value("${admission.streaming-limit:64}") int streamingLimit,
+                              @Value("${admission.route-limits:}") String routeLimits) {
+        this.registry = registry;
+        this.enabled = enabled;
+        this.rateLimiter = new ClientRateLimiter(clientRate, clientBurst > 0 ? clientBurst : clientRate, maxClients);
+        this.clientHeader = clientHeader;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.streamingLimit = streamingLimit;
+        this.routeLimits = parse(routeLimits);
+        if (rateLimiter.isEnabled()) {
+            registry.gauge("userrole.admission.clients", rateLimiter, ClientRateLimiter::size);
+        }
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        String route = Routes.of(request);
+        // Health checks and metrics scrapes are never shed
+        if (!enabled || Routes.OTHER.equals(route)) {
+            return chain.filter(exchange);
+        }
+        long wait = rateLimiter.tryAcquire(client(request));
+        if (wait > 0) {
+            return reject(exchange, route, "rate", HttpStatus.TOO_MANY_REQUESTS, wait);
+        }
+        boolean streaming = Routes.isStreaming(request);
+        AdaptiveConcurrencyLimit limit = limits.computeIfAbsent(streaming ? route + STREAMING : route, this::newLimit);
+        if (!limit.tryAcquire()) {
+            return reject(exchange, route, "concurrency", HttpStatus.SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(1));
+        }
+        long start = System.nanoTime();
+        return chain.filter(exchange)
+                .doFinally(signal -> limit.release(System.nanoTime() - start, !streaming && signal != SignalType.CANCEL));
+    }
+
+    private AdaptiveConcurrencyLimit newLimit(String key) {
+        boolean streaming = key.endsWith(STREAMING);
+        String route = streaming ? key.substring(0, key.length() - STREAMING.length()) : key;
+        int max = Math.min(streaming ? streamingLimit : maxLimit, routeLimits.getOrDefault(route, Integer.MAX_VALUE));
+        AdaptiveConcurrencyLimit limit = streaming
+                ? new AdaptiveConcurrencyLimit(max, max, max, tolerance)
+                : new AdaptiveConcurrencyLimit(Math.min(initialLimit, max), Math.min(minLimit, max), max, tolerance);
+        registry.gauge("userrole.admission.limit", Collections.singletonList(Tag.of("route", key)), limit,
+                AdaptiveConcurrencyLimit::getLimit);
+        registry.gauge("userrole.admission.in.flight", Collections.singletonList(Tag.of("route", key)), limit,
+                AdaptiveConcurrencyLimit::getInFlight);
+        return limit;
+    }
+
+    private Mono<Void> reject(ServerWebExchange exchange, String route, String reason, HttpStatus status, long retryAfterNanos) {
+        registry.counter("userrole.admission.rejected", "route", route, "reason", reason).increment();
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(status);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER,
+                String.valueOf(Math.max(1, (retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1))));
+        return response.setComplete();
+    }
+
+    private String client(ServerHttpRequest request) {
+        if (!clientHeader.isEmpty()) {
+            String client = request.getHeaders().getFirst(clientHeader);
+            if (client != null) {
+                return client;
+            }
+        }
+        InetSocketAddress remote = request.getRemoteAddress();
+        return remote == null ? "" : remote.getAddress() == null ? remote.getHostString() : remote.getAddress().getHostAddress();
+    }
+
+    private static Map<String, Integer> parse(String routeLimits) {
+        return Arrays.stream(routeLimits.split(","))
+                .map(String::trim)
+                .filter(entry -> !entry.isEmpty())
+                .map(entry -> entry.split("="))
+                .collect(Collectors.toMap(entry -> entry[0].trim(), entry -> Integer.parseInt(entry[1].trim())));
+    }
+}
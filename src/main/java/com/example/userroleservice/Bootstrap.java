@@ -0,0 +1,230 @@
+package com.example.userroleservice;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Brings the service up in phases, one after the other, before the application reports started:
+ * the user indexes; with {@code storage.embed-roles}, snapshots of their roles for users still
+ * holding references from before; then the seed data from {@code seed.resource} unless
+ * {@code seed.enabled} is false. Each phase is timed and logged. Until all of them have completed the {@code bootstrap}
+ * health indicator is out of service, so the service isn't taken as ready while it is still empty.
+ * <p>
+ * A seed is a JSON object with a {@code roles} and a {@code users} array, roles first, each
+ * streamed into bulk writes of {@code bulk.batch-size} items with {@code seed.parallelism} batches
+ * at a time. With {@code seed.generated.users} or {@code seed.generated.roles} set, generated users
+ * and roles are seeded instead, such as the load test's. With {@code seed.replace-existing} all users
+ * and roles are deleted first; otherwise seeded ones replace existing ones with the same id.
+ */
+@Slf4j
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+class Bootstrap implements ApplicationRunner, HealthIndicator {
+
+    private final UserRepository userRepository;
+    private final RoleRepository roleRepository;
+    private final RoleCache roleCache;
+    private final RoleMembershipIndex membership;
+    private final UserService userService;
+    private final RoleService roleService;
+    private final ObjectMapper objectMapper;
+    private final ResourceLoader resourceLoader;
+    private final boolean seedEnabled;
+    private final String seedResource;
+    private final boolean replaceExisting;
+    private final int parallelism;
+    private final int generatedUsers;
+    private final int generatedRoles;
+    private final int generatedRolesPerUser;
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+    private volatile String phase = "starting";
+    private volatile boolean ready;
+
+    Bootstrap(UserRepository userRepository, RoleRepository roleRepository, RoleCache roleCache,
+              RoleMembershipIndex membership, UserService userService, RoleService roleService,
+              ObjectMapper objectMapper, ResourceLoader resourceLoader,
+              @Value("${seed.enabled:true}") boolean seedEnabled,
+              @Value("${seed.resource:classpath:seed/demo.json}") String seedResource,
+              @Value("${seed.replace-existing:false}") boolean replaceExisting,
+              @Value("${seed.parallelism:4}") int parallelism,
+              @Value("${seed.generated.users:0}") int generatedUsers,
+              @Value("${seed.generated.roles:0}") int generatedRoles,
+              @Value("${seed.generated.roles-per-user:3}") int generatedRolesPerUser) {
+        this.userRepository = userRepository;
+        this.roleRepository = roleRepository;
+        this.roleCache = roleCache;
+        this.membership = membership;
+        this.userService = userService;
+        this.roleService = roleService;
+        this.objectMapper = objectMapper;
+        this.resourceLoader = resourceLoader;
+        this.seedEnabled = seedEnabled;
+        this.seedResource = seedResource;
+        this.replaceExisting = replaceExisting;
+        this.parallelism = parallelism;
+        this.generatedUsers = generatedUsers;
+        this.generatedRoles = generatedRoles;
+        this.generatedRolesPerUser = generatedRolesPerUser;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.nanoTime();
+        run("indexes", () -> userRepository.ensureIndexes().then(Mono.just("user roles index")));
+        if (seedEnabled && replaceExisting) {
+            run("clear", () -> Mono.when(userRepository.deleteAll(), roleRepository.deleteAll())
+                    .doOnSuccess(cleared -> {
+                        roleCache.invalidateAll();
+                        membership.invalidateAll();
+                    })
+                    .then(Mono.just("deleted all users and roles")));
+        }
+        if (userRepository.embedsRoles()) {
+            run("embed roles", () -> userService.embedRoleReferences()
+                    .map(migrated -> format("%d users holding role references migrated to snapshots", migrated)));
+        }
+        if (seedEnabled) {
+            if (generatedUsers > 0 || generatedRoles > 0) {
+                String source = "generated";
+                run("seed roles", () -> seed(source, "roles", Flux.range(0, generatedRoles).map(Bootstrap::generatedRole),
+                        roles -> roleService.saveAll(roles, parallelism)));
+                run("seed users", () -> seed(source, "users", Flux.range(0, generatedUsers).map(this::generatedUser),
+                        users -> userService.saveAll(users, parallelism)));
+            } else {
+                Resource seed = resourceLoader.getResource(seedResource);
+                run("seed roles", () -> seed(seed.getDescription(), "roles", read(seed, "roles", Role.class),
+                        roles -> roleService.saveAll(roles, parallelism)));
+                run("seed users", () -> seed(seed.getDescription(), "users", read(seed, "users", User.class),
+                        users -> userService.saveAll(users, parallelism)));
+            }
+        }
+        phase = "ready";
+        ready = true;
+        log.info("Bootstrap completed in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = ready ? Health.up() : Health.outOfService();
+        synchronized (phaseMillis) {
+            return health.withDetail("phase", phase).withDetail("phaseMillis", new LinkedHashMap<>(phaseMillis)).build();
+        }
+    }
+
+    // A failed phase fails the startup
+    private void run(String name, Supplier<Mono<String>> work) {
+        phase = name;
+        long start = System.nanoTime();
+        String outcome = work.get().block();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        synchronized (phaseMillis) {
+            phaseMillis.put(name, millis);
+        }
+        log.info("Bootstrap phase {}: {} in {} ms", name, outcome, millis);
+    }
+
+    private <T> Mono<String> seed(String source, String field, Flux<T> items,
+                                  Function<Flux<T>, Flux<BulkItemResult>> writer) {
+        return writer.apply(items)
+                .reduce(new long[2], (counts, result) -> {
+                    counts[result.isSuccess() ? 0 : 1]++;
+                    return counts;
+                })
+                .flatMap(counts -> counts[1] == 0
+                        ? Mono.just(format("%d %s written", counts[0], field))
+                        : Mono.error(new IllegalStateException(format("%d of %d %s in %s failed to be written",
+                                counts[1], counts[0] + counts[1], field, source))));
+    }
+
+    static Role generatedRole(int i) {
+        return Role.builder()
+                .id("lt-role-" + i)
+                .rolename("LT" + i)
+                .description("Beskrivning av roll LT" + i)
+                .build();
+    }
+
+    // Spread over the roles by a prime stride, so users share roles without all holding the same ones
+    User generatedUser(int i) {
+        List<Role> roles = new ArrayList<>(generatedRolesPerUser);
+        for (int r = 0; r < generatedRolesPerUser && generatedRoles > 0; r++) {
+            roles.add(Role.builder().id("lt-role-" + (i + r * 7919) % generatedRoles).build());
+        }
+        return User.builder()
+                .userId(format("lt-user-%07d", i))
+                .name("Lasttestanvändare " + i)
+                .roles(roles)
+                .build();
+    }
+
+    // Streams the items of one array of the seed, so a large seed is never held in memory
+    private <T> Flux<T> read(Resource seed, String field, Class<T> type) {
+        return Flux.using(() -> open(seed, field), parser -> Flux.generate(sink -> {
+            try {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    sink.next(objectMapper.readValue(parser, type));
+                } else {
+                    sink.complete();
+                }
+            } catch (IOException e) {
+                sink.error(new UncheckedIOException(e));
+            }
+        }), this::close);
+    }
+
+    // Leaves the parser on the start of the field's array; a seed without the field has no items
+    private JsonParser open(Resource seed, String field) throws IOException {
+        InputStream in = seed.getInputStream();
+        JsonParser parser = objectMapper.getFactory().createParser(in);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            parser.close();
+            throw new IOException("A seed is a JSON object: " + seed.getDescription());
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals(name) && value == JsonToken.START_ARRAY) {
+                return parser;
+            }
+            parser.skipChildren();
+        }
+        return parser;
+    }
+
+    private void close(JsonParser parser) {
+        try {
+            parser.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.userroleservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import reactor.core.publisher.Flux;
+import reactor.util.function.Tuple2;
+
+/**
+ * Batched, unordered upserts used by the {@code _bulk} routes.
+ */
+final class BulkWrites {
+
+    static final int DUPLICATE_KEY = 11000;
+
+    private BulkWrites() {
+    }
+
+    /**
+     * Splits the items into batches of {@code batchSize} and writes them one batch at a time. Items
+     * without an id are rejected without being written. Results carry the position of the item in
+     * {@code items} and are emitted in that order.
+     */
+    static <T> Flux<BulkItemResult> inBatches(Flux<T> items, int batchSize, Function<T, String> idOf,
+                                              Function<List<T>, Flux<BulkItemResult>> writer) {
+        return inBatches(items, batchSize, idOf, writer, 1);
+    }
+
+    /**
+     * As {@link #inBatches(Flux, int, Function, Function)}, writing up to {@code parallelism} batches
+     * at a time. Results are still emitted in item order.
+     */
+    static <T> Flux<BulkItemResult> inBatches(Flux<T> items, int batchSize, Function<T, String> idOf,
+                                              Function<List<T>, Flux<BulkItemResult>> writer, int parallelism) {
+        return items.index()
+                .buffer(batchSize)
+                .flatMapSequential(batch -> writeBatch(batch, idOf, writer), parallelism);
+    }
+
+    private static <T> Flux<BulkItemResult> writeBatch(List<Tuple2<Long, T>> batch, Function<T, String> idOf,
+                                                       Function<List<T>, Flux<BulkItemResult>> writer) {
+        List<T> valid = new ArrayList<>(batch.size());
+        List<Integer> positions = new ArrayList<>(batch.size());
+        List<BulkItemResult> rejected = new ArrayList<>();
+        for (Tuple2<Long, T> item : batch) {
+            int position = item.getT1().intValue();
+            if (idOf.apply(item.getT2()) == null) {
+                rejected.add(BulkItemResult.failed(position, null, 400, "id is required"));
+            } else {
+                valid.add(item.getT2());
+                positions.add(position);
+            }
+        }
+        Flux<BulkItemResult> written = valid.isEmpty()
+                ? Flux.empty()
+                : writer.apply(valid).map(result -> result.toBuilder().index(positions.get(result.getIndex())).build());
+        return written
+                .concatWith(Flux.fromIterable(rejected))
+                .collectSortedList(Comparator.comparingInt(BulkItemResult::getIndex))
+                .flatMapIterable(Function.identity());
+    }
+
+    /**
+     * Replaces or inserts every item by {@code _id} with a single unordered bulk write. Result indexes
+     * are positions in {@code items}. A replacement can't increment the version, so each item is written
+     * as an update that sets its fields, unsets the ones it doesn't have and bumps the version.
+     */
+    static <T> Flux<BulkItemResult> upsertAll(ReactiveMongoOperations operations, List<T> items,
+                                              Function<T, String> idOf, Class<T> type) {
+        MongoConverter converter = operations.getConverter();
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getRequiredPersistentEntity(type);
+        List<WriteModel<Document>> writes = new ArrayList<>(items.size());
+        for (T item : items) {
+            Document document = new Document();
+            converter.write(item, document);
+            writes.add(new UpdateOneModel<>(new Document("_id", document.get("_id")), replacement(entity, document),
+                    new UpdateOptions().upsert(true)));
+        }
+        return operations.execute(operations.getCollectionName(type), collection ->
+                Flux.from(collection.bulkWrite(writes, new BulkWriteOptions().ordered(false)))
+                        .map(result -> results(items, idOf, result.getUpserts(), Collections.emptyList()))
+                        .onErrorResume(MongoBulkWriteException.class, e ->
+                                Flux.just(results(items, idOf, e.getWriteResult().getUpserts(), e.getWriteErrors()))))
+                .flatMapIterable(Function.identity());
+    }
+
+    private static Document replacement(MongoPersistentEntity<?> entity, Document document) {
+        Document set = new Document();
+        Document unset = new Document();
+        document.forEach((field, value) -> {
+            if (!"_id".equals(field) && !Versions.VERSION.equals(field) && !Versions.LAST_MODIFIED.equals(field)) {
+                set.append(field, value);
+            }
+        });
+        for (MongoPersistentProperty property : entity) {
+            String field = property.getFieldName();
+            if (!property.isIdProperty() && !property.isVersionProperty() && !Versions.LAST_MODIFIED.equals(field)
+                    && !document.containsKey(field)) {
+                unset.append(field, "");
+            }
+        }
+        Document update = new Document("$inc", new Document(Versions.VERSION, 1))
+                .append("$currentDate", new Document(Versions.LAST_MODIFIED, true));
+        if (!set.isEmpty()) {
+            update.append("$set", set);
+        }
+        if (!unset.isEmpty()) {
+            update.append("$unset", unset);
+        }
+        return update;
+    }
+
+    private static <T> List<BulkItemResult> results(List<T> items, Function<T, String> idOf,
+                                                    List<BulkWriteUpsert> upserts, List<BulkWriteError> errors) {
+        Set<Integer> created = upserts.stream().map(BulkWriteUpsert::getIndex).collect(Collectors.toSet());
+        Map<Integer, BulkWriteError> failed = errors.stream()
+                .collect(Collectors.toMap(BulkWriteError::getIndex, Function.identity()));
+        List<BulkItemResult> results = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            String id = idOf.apply(items.get(i));
+            BulkWriteError error = failed.get(i);
+            if (error != null) {
+                results.add(BulkItemResult.failed(i, id, error.getCode() == DUPLICATE_KEY ? 409 : 500, error.getMessage()));
+            } else {
+                results.add(BulkItemResult.succeeded(i, id, created.contains(i) ? 201 : 200));
+            }
+        }
+        return results;
+    }
+}
+
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Builder(toBuilder = true)
+@Data
+class BulkItemResult {
+    private int index;
+    private String id;
+    private int status;
+    private String error;
+
+    static BulkItemResult succeeded(int index, String id, int status) {
+        return new BulkItemResult(index, id, status, null);
+    }
+
+    static BulkItemResult failed(int index, String id, int status, String error) {
+        return new BulkItemResult(index, id, status, error);
+    }
+
+    boolean isSuccess() {
+        return status < 300;
+    }
+}
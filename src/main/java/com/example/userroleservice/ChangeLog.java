@@ -0,0 +1,109 @@
+package com.example.userroleservice;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Log of the creates, updates and deletes made through {@link UserService} and {@link RoleService},
+ * holding the most recent changes only. A change's token orders it after every earlier change, so a
+ * client resumes by reading the changes after the last token it has seen. Tokens are object ids
+ * assigned as changes are appended, and a change is only read once every change with a lower token
+ * is in the log, which keeps them in log order as long as a single instance writes the log.
+ * <p>
+ * Deleting a role detaches it from its users, and with embedded roles a role write is copied into
+ * the users holding it. Each user changed that way is logged as an update too, once it has changed.
+ */
+interface ChangeLog {
+
+    String COLLECTION = "changes";
+    String USER = "user";
+    String ROLE = "role";
+
+    // Following a log that has nothing new polls it again after this delay
+    Duration FOLLOW_RETRY = Duration.ofMillis(500);
+
+    default Mono<Void> record(String entity, String entityId, Change.Operation operation, Long version) {
+        return record(Collections.singletonList(Change.builder()
+                .entity(entity)
+                .entityId(entityId)
+                .operation(operation)
+                .version(version)
+                .time(Versions.now())
+                .build()));
+    }
+
+    // Successful bulk writes are logged as creates or updates of an unknown version
+    default Mono<Void> record(String entity, List<BulkItemResult> results) {
+        Instant time = Versions.now();
+        return record(results.stream()
+                .filter(BulkItemResult::isSuccess)
+                .map(result -> Change.builder()
+                        .entity(entity)
+                        .entityId(result.getId())
+                        .operation(result.getStatus() == 201 ? Change.Operation.CREATE : Change.Operation.UPDATE)
+                        .time(time)
+                        .build())
+                .collect(Collectors.toList()));
+    }
+
+    // Entities changed by a write to another one, such as the users of a role, are logged with an unknown version
+    default Mono<Void> record(String entity, List<String> entityIds, Change.Operation operation) {
+        Instant time = Versions.now();
+        return record(entityIds.stream()
+                .map(id -> Change.builder()
+                        .entity(entity)
+                        .entityId(id)
+                        .operation(operation)
+                        .time(time)
+                        .build())
+                .collect(Collectors.toList()));
+    }
+
+    // Completes once the changes are in the log
+    Mono<Void> record(List<Change> changes);
+
+    // Changes after the token in log order, from the oldest one kept without a token
+    Flux<Change> findSince(String token, int limit);
+
+    // Whether the log still holds every change after the token, which it doesn't once the changes
+    // up to it have been dropped to make room
+    Mono<Boolean> isRetained(String token);
+
+    // The token of the newest change, empty for an empty log
+    Mono<String> latestToken();
+
+    // Live changes after the token, or after the newest change without a token
+    Flux<Change> follow(String token);
+}
+
+@Document(collection = ChangeLog.COLLECTION)
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Builder(toBuilder = true)
+@Data
+class Change {
+    enum Operation { CREATE, UPDATE, DELETE }
+
+    @Id
+    private String token;
+    private String entity;
+    private String entityId;
+    private Operation operation;
+    private Long version;
+    private Instant time;
+}
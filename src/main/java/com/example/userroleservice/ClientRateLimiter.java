@@ -0,0 +1,105 @@
+package com.example.userroleservice;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per client, refilled at {@code ratePerSecond} up to {@code burst} tokens. At most
+ * {@code maxClients} buckets are kept: beyond that, full buckets are dropped, since a client with a
+ * full bucket is no different from a new one, and if that's not enough the least recently used ones
+ * are, down to 90% of {@code maxClients} so that new clients don't each pay for an eviction.
+ */
+class ClientRateLimiter {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final int maxClients;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong uses = new AtomicLong();
+
+    ClientRateLimiter(double ratePerSecond, double burst, int maxClients) {
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.maxClients = maxClients;
+    }
+
+    boolean isEnabled() {
+        return tokensPerNano > 0;
+    }
+
+    /**
+     * @return 0 when the client may go ahead, otherwise the nanoseconds until it has a token again
+     */
+    long tryAcquire(String client) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        Bucket bucket = buckets.computeIfAbsent(client, key -> new Bucket(burst, now));
+        bucket.usedAt = uses.incrementAndGet();
+        // Taken first, so the new client's bucket isn't dropped as a full one
+        long wait = bucket.tryTake(now);
+        if (buckets.size() > maxClients) {
+            evict(now);
+        }
+        return wait;
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    // Recency is taken once per bucket before sorting, as clients keep using their buckets meanwhile
+    private synchronized void evict(long now) {
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+        if (buckets.size() <= maxClients) {
+            return;
+        }
+        List<Map.Entry<String, Long>> byUse = new ArrayList<>(buckets.size());
+        buckets.forEach((client, bucket) -> byUse.add(new AbstractMap.SimpleImmutableEntry<>(client, bucket.usedAt)));
+        byUse.sort(Map.Entry.comparingByValue());
+        int excess = byUse.size() - (maxClients - maxClients / 10);
+        for (int i = 0; i < excess && i < byUse.size(); i++) {
+            buckets.remove(byUse.get(i).getKey());
+        }
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private long refilledAt;
+        private volatile long usedAt;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        private synchronized long tryTake(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        private synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        // Another thread may have refilled with a later time already
+        private void refill(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.userroleservice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.util.context.Context;
+
+/**
+ * Loads entities by id for concurrent callers. A caller asking for an id that is already being
+ * loaded shares that load. An id asked for while no load is running is loaded at once; ids asked
+ * for while one is running wait for it and are then loaded together with one call to
+ * {@code loadAll}, so an uncontended lookup never waits and batches only form under load.
+ * Callers share the loaded entity, so they must not modify it.
+ * Batches run outside the callers' subscriber context, so the database calls a batch makes are
+ * added to the {@link RouteMetricsWebFilter#DB_CALLS} counter of every caller that waited for it.
+ */
+class CoalescingLoader<T> {
+
+    static final int MAX_BATCH_SIZE = 256;
+
+    private final Function<Collection<String>, Flux<T>> loadAll;
+    private final Function<T, String> idOf;
+    private final Map<String, Pending<T>> inFlight = new HashMap<>();
+    private Batch<T> waiting;
+    private int loading;
+
+    CoalescingLoader(Function<Collection<String>, Flux<T>> loadAll, Function<T, String> idOf) {
+        this.loadAll = loadAll;
+        this.idOf = idOf;
+    }
+
+    // The batch has counted all its calls before it completes any caller
+    Mono<T> load(String id) {
+        return Mono.subscriberContext().flatMap(context -> {
+            Pending<T> pending;
+            Batch<T> start = null;
+            synchronized (this) {
+                pending = inFlight.get(id);
+                if (pending == null) {
+                    Batch<T> batch;
+                    if (loading == 0) {
+                        batch = start = new Batch<>();
+                        loading++;
+                    } else {
+                        if (waiting == null) {
+                            waiting = new Batch<>();
+                        }
+                        batch = waiting;
+                    }
+                    pending = new Pending<>(batch.calls);
+                    batch.pending.put(id, pending);
+                    inFlight.put(id, pending);
+                    if (batch == waiting && batch.pending.size() >= MAX_BATCH_SIZE) {
+                        start = waiting;
+                        waiting = null;
+                        loading++;
+                    }
+                }
+            }
+            if (start != null) {
+                loadBatch(start);
+            }
+            Pending<T> joined = pending;
+            return joined.result.doOnTerminate(() -> context.<AtomicInteger>getOrEmpty(RouteMetricsWebFilter.DB_CALLS)
+                    .ifPresent(dbCalls -> dbCalls.addAndGet(joined.calls.get())));
+        });
+    }
+
+    // Loads are started outside the lock. A loadAll that throws instead of returning an error
+    // fails the batch the same way.
+    private void loadBatch(Batch<T> batch) {
+        Flux.defer(() -> loadAll.apply(new ArrayList<>(batch.pending.keySet())))
+                .collectMap(idOf)
+                .subscriberContext(Context.of(RouteMetricsWebFilter.DB_CALLS, batch.calls))
+                .subscribe(loaded -> complete(batch, loaded, null), error -> complete(batch, null, error));
+    }
+
+    // Ids leave the in-flight map before their callers are completed, so a later caller starts a new load.
+    // The ids that waited behind this batch are sent before its callers are completed.
+    private void complete(Batch<T> batch, Map<String, T> loaded, Throwable error) {
+        Batch<T> next;
+        synchronized (this) {
+            batch.pending.forEach(inFlight::remove);
+            next = waiting;
+            waiting = null;
+            if (next == null) {
+                loading--;
+            }
+        }
+        if (next != null) {
+            loadBatch(next);
+        }
+        batch.pending.forEach((id, pending) -> {
+            if (error != null) {
+                pending.result.onError(error);
+                return;
+            }
+            T entity = loaded.get(id);
+            if (entity == null) {
+                pending.result.onComplete();
+            } else {
+                pending.result.onNext(entity);
+            }
+        });
+    }
+
+    private static class Batch<T> {
+        private final Map<String, Pending<T>> pending = new HashMap<>();
+        private final AtomicInteger calls = new AtomicInteger();
+    }
+
+    private static class Pending<T> {
+        private final MonoProcessor<T> result = MonoProcessor.create();
+        private final AtomicInteger calls;
+
+        private Pending(AtomicInteger calls) {
+            this.calls = calls;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.userroleservice;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.function.server.ServerRequest;
+
+/**
+ * Entity tags and conditional request headers for the user and role routes. A role is tagged by its
+ * version. A user is tagged by its version and a hash of the versions of its resolved roles, since
+ * the roles are part of the user representation.
+ */
+final class ConditionalRequests {
+
+    // Never stored, so an If-Match that can't be parsed fails the version check instead of being ignored
+    static final long UNKNOWN_VERSION = -1;
+
+    private ConditionalRequests() {
+    }
+
+    static String etag(Role role) {
+        return quote(Long.toString(version(role.getVersion())));
+    }
+
+    static String etag(User user) {
+        int hash = 1;
+        for (Role role : user.getRoles()) {
+            hash = 31 * hash + Objects.hashCode(role.getId());
+            hash = 31 * hash + Long.hashCode(version(role.getVersion()));
+        }
+        return quote(version(user.getVersion()) + "-" + Integer.toHexString(hash));
+    }
+
+    // A user changes when one of its roles does, so it was last modified when any of them was
+    static Instant lastModified(User user) {
+        Instant lastModified = user.getLastModified();
+        for (Role role : user.getRoles()) {
+            if (lastModified == null || role.getLastModified() != null && role.getLastModified().isAfter(lastModified)) {
+                lastModified = role.getLastModified();
+            }
+        }
+        return lastModified;
+    }
+
+    static <T> String etag(List<T> items, Function<T, String> etagOf) {
+        int hash = 1;
+        for (T item : items) {
+            hash = 31 * hash + etagOf.apply(item).hashCode();
+        }
+        return quote(items.size() + "-" + Integer.toHexString(hash));
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since, which only has a resolution of seconds
+    static boolean isNotModified(ServerRequest request, String etag, Instant lastModified) {
+        List<String> ifNoneMatch = request.headers().header(HttpHeaders.IF_NONE_MATCH);
+        if (!ifNoneMatch.isEmpty()) {
+            return tags(ifNoneMatch).anyMatch(tag -> "*".equals(tag) || opaque(tag).equals(etag));
+        }
+        long ifModifiedSince = request.headers().asHttpHeaders().getIfModifiedSince();
+        return ifModifiedSince >= 0 && lastModified != null
+                && lastModified.getEpochSecond() <= TimeUnit.MILLISECONDS.toSeconds(ifModifiedSince);
+    }
+
+    // The version a write is conditional on, or null without If-Match or with If-Match: *
+    static Long ifMatchVersion(ServerRequest request) {
+        Optional<String> tag = tags(request.headers().header(HttpHeaders.IF_MATCH)).findFirst();
+        if (!tag.isPresent() || "*".equals(tag.get())) {
+            return null;
+        }
+        // If-Match uses the strong comparison, a weak tag never matches
+        String value = tag.get().startsWith("W/") ? "" : tag.get().replace("\"", "");
+        int dash = value.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? value : value.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return UNKNOWN_VERSION;
+        }
+    }
+
+    private static Stream<String> tags(List<String> headerValues) {
+        return headerValues.stream()
+                .flatMap(value -> Arrays.stream(value.split(",")))
+                .map(String::trim)
+                .filter(tag -> !tag.isEmpty());
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static long version(Long version) {
+        return version == null ? 0 : version;
+    }
+
+    private static String quote(String tag) {
+        return "\"" + tag + "\"";
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.userroleservice;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The fields a client asked for with {@code ?fields=userId,roles.id}. A field includes the fields
+ * below it, so {@code roles} is every role field. Users and roles are answered as maps of the
+ * requested fields only; without {@code fields} they are answered whole.
+ */
+final class Fields {
+
+    static final Set<String> USER = known("userId", "name", "roles", "roles.id", "roles.rolename", "roles.description");
+    static final Set<String> ROLE = known("id", "rolename", "description");
+    static final Fields ALL = new Fields(Collections.emptySet());
+
+    private final Set<String> requested;
+
+    private Fields(Set<String> requested) {
+        this.requested = requested;
+    }
+
+    // All fields for a missing or blank value; fails with an IllegalArgumentException on an unknown field
+    static Fields parse(String value, Set<String> known) {
+        if (value == null || value.trim().isEmpty()) {
+            return ALL;
+        }
+        Set<String> requested = Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(field -> !field.isEmpty())
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        for (String field : requested) {
+            if (!known.contains(field)) {
+                throw new IllegalArgumentException("Unknown field " + field);
+            }
+        }
+        return new Fields(requested);
+    }
+
+    boolean isAll() {
+        return requested.isEmpty();
+    }
+
+    // Whether the field is requested, itself or through the field above it
+    boolean contains(String field) {
+        if (isAll()) {
+            return true;
+        }
+        for (String path = field; ; path = path.substring(0, path.lastIndexOf('.'))) {
+            if (requested.contains(path)) {
+                return true;
+            }
+            if (path.indexOf('.') < 0) {
+                return false;
+            }
+        }
+    }
+
+    // Whether the field or any field below it is requested
+    boolean touches(String field) {
+        return contains(field) || requested.stream().anyMatch(path -> path.startsWith(field + "."));
+    }
+
+    // Role details beyond their ids come from the roles themselves
+    boolean needsRoleDetails() {
+        return contains("roles.rolename") || contains("roles.description");
+    }
+
+    Object project(Object item) {
+        if (isAll()) {
+            return item;
+        }
+        if (item instanceof User) {
+            return project((User) item);
+        }
+        if (item instanceof Role) {
+            return project((Role) item, "");
+        }
+        throw new IllegalArgumentException("Can't project " + item);
+    }
+
+    private Map<String, Object> project(User user) {
+        Map<String, Object> projected = new LinkedHashMap<>();
+        put(projected, "userId", user.getUserId());
+        put(projected, "name", user.getName());
+        if (touches("roles")) {
+            List<Map<String, Object>> roles = user.getRoles().stream()
+                    .map(role -> project(role, "roles."))
+                    .collect(Collectors.toList());
+            projected.put("roles", roles);
+        }
+        return projected;
+    }
+
+    private Map<String, Object> project(Role role, String prefix) {
+        Map<String, Object> projected = new LinkedHashMap<>();
+        put(projected, prefix + "id", role.getId());
+        put(projected, prefix + "rolename", role.getRolename());
+        put(projected, prefix + "description", role.getDescription());
+        return projected;
+    }
+
+    private void put(Map<String, Object> projected, String field, Object value) {
+        if (contains(field)) {
+            projected.put(field.substring(field.lastIndexOf('.') + 1), value);
+        }
+    }
+
+    private static Set<String> known(String... fields) {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(fields)));
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.userroleservice;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.types.ObjectId;
+
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link ChangeLog} of the in-memory storage engine, keeping at most {@code maxDocuments} changes.
+ * Followers are woken by each append, or poll again after {@link #FOLLOW_RETRY}.
+ */
+class InMemoryChangeLog implements ChangeLog {
+
+    private final long maxDocuments;
+    private final ConcurrentNavigableMap<String, Change> changes = new ConcurrentSkipListMap<>();
+    private final DirectProcessor<String> appends = DirectProcessor.create();
+    private final FluxSink<String> appended = appends.sink();
+    private long size;
+
+    InMemoryChangeLog(long maxDocuments) {
+        this.maxDocuments = maxDocuments;
+    }
+
+    @Override
+    public Mono<Void> record(List<Change> changes) {
+        if (changes.isEmpty()) {
+            return Mono.empty();
+        }
+        return Mono.fromRunnable(() -> append(changes));
+    }
+
+    @Override
+    public Flux<Change> findSince(String token, int limit) {
+        return Flux.defer(() -> Flux.fromIterable(after(token).values()).take(limit));
+    }
+
+    @Override
+    public Mono<Boolean> isRetained(String token) {
+        return Mono.fromCallable(() -> {
+            Map.Entry<String, Change> oldest = changes.firstEntry();
+            return oldest == null || oldest.getKey().compareTo(token) <= 0;
+        });
+    }
+
+    @Override
+    public Mono<String> latestToken() {
+        return Mono.fromCallable(() -> changes.isEmpty() ? null : changes.lastKey());
+    }
+
+    @Override
+    public Flux<Change> follow(String token) {
+        Mono<String> start = token != null ? Mono.just(token) : latestToken();
+        return start.map(first -> new AtomicReference<>(first))
+                .defaultIfEmpty(new AtomicReference<String>())
+                .flatMapMany(last -> Flux.defer(() -> findSince(last.get(), Integer.MAX_VALUE))
+                        .doOnNext(change -> last.set(change.getToken()))
+                        .repeatWhen(completions -> completions.concatMap(completed ->
+                                Mono.first(appends.next().then(), Mono.delay(FOLLOW_RETRY).then()))));
+    }
+
+    // Appends are serialized so tokens are assigned in log order
+    private synchronized void append(List<Change> appending) {
+        for (Change change : appending) {
+            change.setToken(new ObjectId().toHexString());
+            changes.put(change.getToken(), change.toBuilder().build());
+            size++;
+        }
+        // size() of a skip list map counts its entries
+        for (; size > maxDocuments; size--) {
+            changes.pollFirstEntry();
+        }
+        appended.next(changes.lastKey());
+    }
+
+    private ConcurrentNavigableMap<String, Change> after(String token) {
+        return token == null ? changes : changes.tailMap(token, false);
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.userroleservice;
+
+import java.beans.PropertyDescriptor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import org.reactivestreams.Publisher;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Example;
+import org.springframework.data.domain.ExampleMatcher;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.data.support.ExampleMatcherAccessor;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Repository of the in-memory storage engine, over a concurrent skip list map sorted by id. Entities
+ * are copied on the way in and out as a database would, so callers may modify what they read, and a
+ * stored entity is replaced rather than modified. Versions follow the Mongo repositories: a save of a
+ * new entity inserts it at version 0, a save of a versioned one only replaces that version, and the
+ * atomic writes of the subclasses increment the version and stamp the modification time. Sorted and
+ * by-example queries scan all entities and sort the matches in memory.
+ */
+abstract class InMemoryRepository<T extends Versioned> implements ReactiveMongoRepository<T, String> {
+
+    protected final ConcurrentNavigableMap<String, T> entities = new ConcurrentSkipListMap<>();
+    private final Function<T, String> idOf;
+    private final UnaryOperator<T> copy;
+
+    InMemoryRepository(Function<T, String> idOf, UnaryOperator<T> copy) {
+        this.idOf = idOf;
+        this.copy = copy;
+    }
+
+    @Override
+    public <S extends T> Mono<S> insert(S entity) {
+        return Mono.fromCallable(() -> store(entity, true));
+    }
+
+    @Override
+    public <S extends T> Flux<S> insert(Iterable<S> entities) {
+        return Flux.fromIterable(entities).concatMap(this::insert);
+    }
+
+    @Override
+    public <S extends T> Flux<S> insert(Publisher<S> entities) {
+        return Flux.from(entities).concatMap(this::insert);
+    }
+
+    @Override
+    public <S extends T> Mono<S> save(S entity) {
+        return Mono.fromCallable(() -> store(entity, false));
+    }
+
+    @Override
+    public <S extends T> Flux<S> saveAll(Iterable<S> entities) {
+        return Flux.fromIterable(entities).concatMap(this::save);
+    }
+
+    @Override
+    public <S extends T> Flux<S> saveAll(Publisher<S> entities) {
+        return Flux.from(entities).concatMap(this::save);
+    }
+
+    @Override
+    public Mono<T> findById(String id) {
+        return Mono.fromCallable(() -> read(entities.get(id)));
+    }
+
+    @Override
+    public Mono<T> findById(Publisher<String> id) {
+        return Mono.from(id).flatMap(this::findById);
+    }
+
+    @Override
+    public Mono<Boolean> existsById(String id) {
+        return Mono.fromCallable(() -> entities.containsKey(id));
+    }
+
+    @Override
+    public Mono<Boolean> existsById(Publisher<String> id) {
+        return Mono.from(id).flatMap(this::existsById);
+    }
+
+    @Override
+    public Flux<T> findAll() {
+        return Flux.defer(() -> Flux.fromIterable(entities.values())).map(copy);
+    }
+
+    @Override
+    public Flux<T> findAll(Sort sort) {
+        return find(entity -> true, sort);
+    }
+
+    @Override
+    public Flux<T> findAllById(Iterable<String> ids) {
+        return Flux.fromIterable(ids).concatMap(this::findById);
+    }
+
+    @Override
+    public Flux<T> findAllById(Publisher<String> ids) {
+        return Flux.from(ids).concatMap(this::findById);
+    }
+
+    @Override
+    public Mono<Long> count() {
+        return Mono.fromCallable(() -> (long) entities.size());
+    }
+
+    @Override
+    public Mono<Void> deleteById(String id) {
+        return Mono.fromRunnable(() -> entities.remove(id));
+    }
+
+    public Mono<Void> deleteById(Publisher<String> id) {
+        return Mono.from(id).flatMap(this::deleteById);
+    }
+
+    @Override
+    public Mono<Void> delete(T entity) {
+        return deleteById(idOf.apply(entity));
+    }
+
+    @Override
+    public Mono<Void> deleteAll(Iterable<? extends T> entities) {
+        return Flux.fromIterable(entities).concatMap(this::delete).then();
+    }
+
+    @Override
+    public Mono<Void> deleteAll(Publisher<? extends T> entities) {
+        return Flux.from(entities).concatMap(this::delete).then();
+    }
+
+    @Override
+    public Mono<Void> deleteAll() {
+        return Mono.fromRunnable(entities::clear);
+    }
+
+    @Override
+    public <S extends T> Mono<S> findOne(Example<S> example) {
+        return findAll(example).buffer(2).next().flatMap(found -> found.size() > 1
+                ? Mono.error(new IncorrectResultSizeDataAccessException(1, found.size()))
+                : Mono.just(found.get(0)));
+    }
+
+    @Override
+    public <S extends T> Flux<S> findAll(Example<S> example) {
+        return findAll(example, Sort.unsorted());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <S extends T> Flux<S> findAll(Example<S> example, Sort sort) {
+        return find(entity -> matches(example, entity), sort).map(entity -> (S) entity);
+    }
+
+    @Override
+    public <S extends T> Mono<Long> count(Example<S> example) {
+        return findAll(example).count();
+    }
+
+    @Override
+    public <S extends T> Mono<Boolean> exists(Example<S> example) {
+        return findAll(example).hasElements();
+    }
+
+    // The derived queries of the repository interfaces; pages are always sorted by id
+    public Flux<T> findAllBy(Pageable pageable) {
+        return Flux.defer(() -> Flux.fromIterable(entities.values()))
+                .skip(pageable.getOffset())
+                .take(pageable.getPageSize())
+                .map(copy);
+    }
+
+    public Flux<T> findByIdGreaterThan(String id, Pageable pageable) {
+        return Flux.defer(() -> Flux.fromIterable(entities.tailMap(id, false).values()))
+                .skip(pageable.getOffset())
+                .take(pageable.getPageSize())
+                .map(copy);
+    }
+
+    // Replaces the entity with the result of the update, as a new version
+    Mono<T> modify(String id, UnaryOperator<T> update) {
+        return modify(id, null, update);
+    }
+
+    // With an expected version the update only applies to that version and fails on a newer one
+    Mono<T> modify(String id, Long expectedVersion, UnaryOperator<T> update) {
+        return Mono.fromCallable(() -> read(entities.computeIfPresent(id, (key, current) -> {
+            if (expectedVersion != null && expectedVersion != (current.getVersion() == null ? 0 : current.getVersion())) {
+                throw new OptimisticLockingFailureException("Version " + expectedVersion + " of " + id + " is stale");
+            }
+            return bump(update.apply(copy.apply(current)));
+        })));
+    }
+
+    // Inserts or replaces each entity as a new version, reporting 201 for an insert and 200 for a replace
+    public Flux<BulkItemResult> upsertAll(List<T> items) {
+        return Mono.fromCallable(() -> {
+            List<BulkItemResult> results = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                T item = items.get(i);
+                String id = idOf.apply(item);
+                boolean[] created = new boolean[1];
+                entities.compute(id, (key, current) -> {
+                    created[0] = current == null;
+                    T next = copy.apply(item);
+                    next.setVersion(current == null ? null : current.getVersion());
+                    return bump(next);
+                });
+                results.add(BulkItemResult.succeeded(i, id, created[0] ? 201 : 200));
+            }
+            return results;
+        }).flatMapIterable(Function.identity());
+    }
+
+    // Puts an entity as it was, for loading a snapshot
+    void restore(T entity) {
+        entities.put(idOf.apply(entity), entity);
+    }
+
+    // The stored entities, which are never modified
+    List<T> snapshot() {
+        return new ArrayList<>(entities.values());
+    }
+
+    T read(T entity) {
+        return entity == null ? null : copy.apply(entity);
+    }
+
+    // Sorted by the properties of the sort with nulls first as Mongo sorts them; ties stay in id order
+    private Flux<T> find(Predicate<T> filter, Sort sort) {
+        if (sort.isUnsorted()) {
+            return Flux.defer(() -> Flux.fromStream(entities.values().stream().filter(filter))).map(copy);
+        }
+        return Flux.defer(() -> Flux.fromStream(entities.values().stream().filter(filter).sorted(comparator(sort))))
+                .map(copy);
+    }
+
+    private static <T> Comparator<T> comparator(Sort sort) {
+        Comparator<T> comparator = (left, right) -> 0;
+        for (Sort.Order order : sort) {
+            Comparator<Object> natural = InMemoryRepository::compare;
+            Comparator<Object> ignoringCase = Comparator.comparing(value -> value.toString().toLowerCase());
+            Comparator<Object> values = Comparator.nullsFirst(order.isIgnoreCase() ? ignoringCase : natural);
+            Comparator<T> property = Comparator.comparing(
+                    entity -> PropertyAccessorFactory.forBeanPropertyAccess(entity).getPropertyValue(order.getProperty()),
+                    order.isAscending() ? values : values.reversed());
+            comparator = comparator.thenComparing(property);
+        }
+        return comparator;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object left, Object right) {
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    // The set properties of the probe, as Spring Data's Mongo mapping takes them: nulls and empty
+    // collections are left out unless the matcher includes nulls, and strings match as the matcher says
+    private static boolean matches(Example<?> example, Object entity) {
+        if (!example.getProbeType().isInstance(entity)) {
+            return false;
+        }
+        ExampleMatcher matcher = example.getMatcher();
+        ExampleMatcherAccessor accessor = new ExampleMatcherAccessor(matcher);
+        BeanWrapper probe = PropertyAccessorFactory.forBeanPropertyAccess(example.getProbe());
+        BeanWrapper candidate = PropertyAccessorFactory.forBeanPropertyAccess(entity);
+        boolean any = false;
+        for (PropertyDescriptor descriptor : probe.getPropertyDescriptors()) {
+            String path = descriptor.getName();
+            if (descriptor.getReadMethod() == null || "class".equals(path) || accessor.isIgnoredPath(path)) {
+                continue;
+            }
+            Object expected = accessor.getValueTransformerForPath(path)
+                    .apply(Optional.ofNullable(probe.getPropertyValue(path))).orElse(null);
+            boolean unset = expected == null || expected instanceof Collection && ((Collection<?>) expected).isEmpty();
+            if (unset && matcher.getNullHandler() == ExampleMatcher.NullHandler.IGNORE) {
+                continue;
+            }
+            boolean matched = matches(accessor, path, expected, candidate.getPropertyValue(path));
+            if (matched && matcher.isAnyMatching()) {
+                return true;
+            }
+            if (!matched && matcher.isAllMatching()) {
+                return false;
+            }
+            any = any || matched;
+        }
+        return matcher.isAllMatching() || any;
+    }
+
+    private static boolean matches(ExampleMatcherAccessor accessor, String path, Object expected, Object actual) {
+        if (!(expected instanceof String) || !(actual instanceof String)) {
+            return Objects.equals(expected, actual);
+        }
+        boolean ignoreCase = accessor.isIgnoreCaseForPath(path);
+        if (accessor.getStringMatcherForPath(path) == ExampleMatcher.StringMatcher.REGEX) {
+            return Pattern.compile((String) expected, ignoreCase ? Pattern.CASE_INSENSITIVE : 0).matcher((String) actual).find();
+        }
+        String pattern = ignoreCase ? ((String) expected).toLowerCase() : (String) expected;
+        String value = ignoreCase ? ((String) actual).toLowerCase() : (String) actual;
+        switch (accessor.getStringMatcherForPath(path)) {
+            case STARTING:
+                return value.startsWith(pattern);
+            case ENDING:
+                return value.endsWith(pattern);
+            case CONTAINING:
+                return value.contains(pattern);
+            default:
+                return value.equals(pattern);
+        }
+    }
+
+    // Mongo's $inc creates a missing version as 1
+    T bump(T entity) {
+        entity.setVersion(entity.getVersion() == null ? 1 : entity.getVersion() + 1);
+        entity.setLastModified(Versions.now());
+        return entity;
+    }
+
+    // An insert, or a save of an entity without a version, adds the entity at its version or 0. A save of
+    // a versioned entity replaces that version only, or adds the entity when it's missing.
+    private <S extends T> S store(S entity, boolean insert) {
+        String id = idOf.apply(entity);
+        Long version = entity.getVersion();
+        boolean versioned = !insert && version != null;
+        T stored = copy.apply(entity);
+        stored.setVersion(version == null ? 0 : versioned ? version + 1 : version);
+        entities.compute(id, (key, current) -> {
+            if (current != null && !versioned) {
+                throw new DuplicateKeyException("Duplicate id " + id);
+            }
+            if (current != null && !version.equals(current.getVersion())) {
+                throw new OptimisticLockingFailureException("Version " + version + " of " + id + " is stale");
+            }
+            return stored;
+        });
+        entity.setVersion(stored.getVersion());
+        return entity;
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.userroleservice;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link RoleRepository} of the in-memory storage engine.
+ */
+class InMemoryRoleRepository extends InMemoryRepository<Role> implements RoleRepository {
+
+    InMemoryRoleRepository() {
+        super(Role::getId, Role::copy);
+    }
+
+    @Override
+    public Mono<Role> findAndReplace(Role role, Long expectedVersion) {
+        return modify(role.getId(), expectedVersion, current -> {
+            current.setRolename(role.getRolename());
+            current.setDescription(role.getDescription());
+            return current;
+        });
+    }
+
+    @Override
+    public Mono<Role> findAndRemoveById(String id) {
+        return Mono.fromCallable(() -> read(entities.remove(id)));
+    }
+}
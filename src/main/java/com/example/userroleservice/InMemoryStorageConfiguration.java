@@ -0,0 +1,48 @@
+package com.example.userroleservice;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * The in-memory storage engine, selected with {@code storage.engine=memory}. Its repositories take
+ * precedence over the Mongo repositories and its change log replaces the capped collection. With
+ * {@code storage.memory.snapshot-file} set the data survives restarts. The {@code memory} profile
+ * selects the engine and leaves Mongo out altogether.
+ */
+@Configuration
+@ConditionalOnProperty(name = "storage.engine", havingValue = "memory")
+class InMemoryStorageConfiguration {
+
+    @Bean(destroyMethod = "close")
+    InMemoryStore inMemoryStore(@Value("${storage.memory.snapshot-file:}") String snapshotFile,
+                                @Value("${storage.memory.snapshot-interval-seconds:60}") long snapshotIntervalSeconds,
+                                @Value("${storage.embed-roles:false}") boolean embedRoles)
+            throws IOException {
+        return new InMemoryStore(snapshotFile.isEmpty() ? null : Paths.get(snapshotFile),
+                Duration.ofSeconds(snapshotIntervalSeconds), embedRoles);
+    }
+
+    @Bean
+    @Primary
+    UserRepository inMemoryUserRepository(InMemoryStore store) {
+        return store.users();
+    }
+
+    @Bean
+    @Primary
+    RoleRepository inMemoryRoleRepository(InMemoryStore store) {
+        return store.roles();
+    }
+
+    @Bean
+    ChangeLog inMemoryChangeLog(@Value("${changes.max-documents:100000}") long maxDocuments) {
+        return new InMemoryChangeLog(maxDocuments);
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.userroleservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * The users and roles of the in-memory storage engine. With a snapshot file they are loaded from it
+ * when the store is created, and written to it every {@code snapshotInterval} and when the store is
+ * closed. A snapshot goes to a temporary file that then replaces the previous snapshot, so a crash
+ * never leaves a partial one behind. Writes made while a snapshot is taken may or may not be in it.
+ * Snapshots keep role ids only; embedded roles are taken from the snapshot's roles when loading.
+ * A periodic snapshot that fails is logged and tried again at the next interval.
+ */
+@Slf4j
+class InMemoryStore implements Closeable {
+
+    // "URS" and the format version; version 1 wrote strings with writeUTF, which fails beyond 64 KB
+    private static final int MAGIC = 0x55525302;
+    private static final int MAGIC_V1 = 0x55525301;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final InMemoryUserRepository users;
+    private final InMemoryRoleRepository roles = new InMemoryRoleRepository();
+    private final Path snapshotFile;
+    private final Scheduler scheduler;
+    private final Disposable snapshots;
+
+    InMemoryStore(Path snapshotFile, Duration snapshotInterval, boolean embedRoles) throws IOException {
+        this.users = new InMemoryUserRepository(embedRoles);
+        this.snapshotFile = snapshotFile;
+        if (snapshotFile != null && Files.exists(snapshotFile)) {
+            read();
+        }
+        if (snapshotFile != null && !snapshotInterval.isZero()) {
+            this.scheduler = Schedulers.newSingle("in-memory-snapshots");
+            this.snapshots = scheduler.schedulePeriodically(this::writeSnapshot,
+                    snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+            this.snapshots = Disposables.disposed();
+        }
+    }
+
+    InMemoryUserRepository users() {
+        return users;
+    }
+
+    InMemoryRoleRepository roles() {
+        return roles;
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshots.dispose();
+        if (scheduler != null) {
+            scheduler.dispose();
+        }
+        if (snapshotFile != null) {
+            write();
+        }
+    }
+
+    // A task that throws would cancel the schedule, so failures are logged instead
+    private void writeSnapshot() {
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            log.error("Writing snapshot {} failed", snapshotFile, e);
+        }
+    }
+
+    synchronized void write() throws IOException {
+        List<Role> roleSnapshot = roles.snapshot();
+        List<User> userSnapshot = users.snapshot();
+        Path parent = snapshotFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(roleSnapshot.size());
+            for (Role role : roleSnapshot) {
+                writeString(out, role.getId());
+                writeNullable(out, role.getRolename());
+                writeNullable(out, role.getDescription());
+                writeVersion(out, role);
+            }
+            out.writeInt(userSnapshot.size());
+            for (User user : userSnapshot) {
+                writeString(out, user.getUserId());
+                writeNullable(out, user.getName());
+                writeVersion(out, user);
+                out.writeInt(user.getRoles().size());
+                for (Role role : user.getRoles()) {
+                    writeString(out, role.getId());
+                }
+            }
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void read() throws IOException {
+        Map<String, Role> rolesById = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Not a snapshot: " + snapshotFile);
+            }
+            boolean v1 = magic == MAGIC_V1;
+            for (int i = in.readInt(); i > 0; i--) {
+                Role role = Role.builder()
+                        .id(readString(in, v1))
+                        .rolename(readNullable(in, v1))
+                        .description(readNullable(in, v1))
+                        .build();
+                readVersion(in, role);
+                roles.restore(role);
+                rolesById.put(role.getId(), role);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                User user = User.builder()
+                        .userId(readString(in, v1))
+                        .name(readNullable(in, v1))
+                        .build();
+                readVersion(in, user);
+                int roleCount = in.readInt();
+                List<Role> userRoles = new ArrayList<>(roleCount);
+                for (int r = 0; r < roleCount; r++) {
+                    userRoles.add(Role.builder().id(readString(in, v1)).build());
+                }
+                user.setRoles(userRoles);
+                if (users.embedsRoles()) {
+                    user.setRoles(user.resolvedRoles(rolesById).stream().map(Role::copy).collect(Collectors.toList()));
+                }
+                users.restore(user);
+            }
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in, boolean v1) throws IOException {
+        return in.readBoolean() ? readString(in, v1) : null;
+    }
+
+    // The UTF-8 length and bytes, so a string isn't limited to the 64 KB of writeUTF
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, boolean v1) throws IOException {
+        if (v1) {
+            return in.readUTF();
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVersion(DataOutputStream out, Versioned entity) throws IOException {
+        out.writeLong(entity.getVersion() == null ? NONE : entity.getVersion());
+        out.writeLong(entity.getLastModified() == null ? NONE : entity.getLastModified().toEpochMilli());
+    }
+
+    private static void readVersion(DataInputStream in, Versioned entity) throws IOException {
+        long version = in.readLong();
+        long lastModified = in.readLong();
+        entity.setVersion(version == NONE ? null : version);
+        entity.setLastModified(lastModified == NONE ? null : Instant.ofEpochMilli(lastModified));
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.userroleservice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.springframework.data.domain.Pageable;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link UserRepository} of the in-memory storage engine. Users are kept with id-only role
+ * references, as {@link UserReadConverter} reads them from Mongo, or with role snapshots when
+ * embedding roles.
+ */
+class InMemoryUserRepository extends InMemoryRepository<User> implements UserRepository {
+
+    private final boolean embedRoles;
+
+    InMemoryUserRepository(boolean embedRoles) {
+        super(User::getUserId, user -> stored(user, embedRoles));
+        this.embedRoles = embedRoles;
+    }
+
+    @Override
+    public boolean embedsRoles() {
+        return embedRoles;
+    }
+
+    @Override
+    public Flux<User> findByUserIdGreaterThan(String userId, Pageable pageable) {
+        return findByIdGreaterThan(userId, pageable);
+    }
+
+    @Override
+    public Mono<User> findAndReplace(User user, Long expectedVersion) {
+        return modify(user.getUserId(), expectedVersion, current -> {
+            current.setName(user.getName());
+            current.setRoles(stored(user, embedRoles).getRoles());
+            return current;
+        });
+    }
+
+    @Override
+    public Mono<User> findAndRemoveById(String userId) {
+        return Mono.fromCallable(() -> read(entities.remove(userId)));
+    }
+
+    // Held roles keep their place and an added role snapshot replaces an older one, like the Mongo
+    // repository does; roles not held yet are appended.
+    @Override
+    public Mono<User> findAndUpdateRoles(String userId, Collection<Role> add, Collection<String> remove) {
+        Collection<Role> adding = add == null ? Collections.emptyList() : add;
+        Collection<String> removing = remove == null ? Collections.emptyList() : remove;
+        if (adding.isEmpty() && removing.isEmpty()) {
+            return findById(userId);
+        }
+        return modify(userId, user -> {
+            Map<String, Role> pending = new LinkedHashMap<>();
+            adding.forEach(role -> pending.put(role.getId(), role));
+            List<Role> roles = new ArrayList<>();
+            for (Role role : user.getRoles()) {
+                Role added = pending.remove(role.getId());
+                if (added == null && removing.contains(role.getId())) {
+                    continue;
+                }
+                roles.add(added != null && embedRoles && !isNewer(role, added) ? stored(added, true) : role);
+            }
+            pending.values().forEach(added -> roles.add(stored(added, embedRoles)));
+            user.setRoles(roles);
+            return user;
+        });
+    }
+
+    // Users are read whole whatever the fields, there is nothing to save by leaving some out
+    @Override
+    public Flux<User> findAllById(Collection<String> userIds, Fields fields) {
+        return findAllById(userIds);
+    }
+
+    @Override
+    public Flux<User> findPage(String after, int limit, Fields fields) {
+        return Flux.defer(() -> Flux.fromIterable(after == null ? entities.values() : entities.tailMap(after, false).values()))
+                .take(limit == 0 ? Long.MAX_VALUE : limit)
+                .map(this::read);
+    }
+
+    // Scans all users, there is no index on roles
+    @Override
+    public Flux<User> findByRoleId(String roleId, String after, int limit, Fields fields) {
+        return Flux.defer(() -> Flux.fromIterable(after == null ? entities.values() : entities.tailMap(after, false).values()))
+                .filter(user -> hasRole(user, roleId))
+                .take(limit == 0 ? Long.MAX_VALUE : limit)
+                .map(this::read);
+    }
+
+    @Override
+    public Flux<String> removeRoleFromAll(String roleId) {
+        return Flux.defer(() -> Flux.fromIterable(entities.values()))
+                .filter(user -> hasRole(user, roleId))
+                .concatMap(user -> modify(user.getUserId(), modified -> {
+                    modified.setRoles(modified.getRoles().stream()
+                            .filter(role -> !roleId.equals(role.getId()))
+                            .collect(Collectors.toList()));
+                    return modified;
+                }))
+                .map(User::getUserId);
+    }
+
+    // Leaves the user versions alone and keeps newer snapshots, as the Mongo repository does
+    @Override
+    public Flux<String> updateEmbeddedRoles(List<Role> updated) {
+        if (!embedRoles) {
+            return Flux.empty();
+        }
+        return Mono.fromCallable(() -> {
+            Set<String> modified = new LinkedHashSet<>();
+            for (Role role : updated) {
+                for (Map.Entry<String, User> entry : entities.entrySet()) {
+                    if (!hasOlderSnapshot(entry.getValue(), role)) {
+                        continue;
+                    }
+                    boolean[] replaced = new boolean[1];
+                    entities.computeIfPresent(entry.getKey(), (id, current) -> {
+                        replaced[0] = hasOlderSnapshot(current, role);
+                        return replaced[0] ? withSnapshot(current, role) : current;
+                    });
+                    if (replaced[0]) {
+                        modified.add(entry.getKey());
+                    }
+                }
+            }
+            return modified;
+        }).flatMapIterable(ids -> ids);
+    }
+
+    // Users are stored with snapshots from their first write on, and loaded with them from a snapshot
+    @Override
+    public Flux<User> findWithRoleReferences() {
+        return Flux.empty();
+    }
+
+    @Override
+    public Mono<String> ensureIndexes() {
+        return Mono.just("roles");
+    }
+
+    private static boolean hasRole(User user, String roleId) {
+        return user.getRoles().stream().anyMatch(role -> roleId.equals(role.getId()));
+    }
+
+    private static boolean isNewer(Role held, Role added) {
+        return held.getVersion() != null && added.getVersion() != null && held.getVersion() > added.getVersion();
+    }
+
+    private static boolean hasOlderSnapshot(User user, Role role) {
+        return user.getRoles().stream().anyMatch(held -> role.getId().equals(held.getId())
+                && (held.getVersion() == null || role.getVersion() == null || held.getVersion() < role.getVersion()));
+    }
+
+    private static User withSnapshot(User user, Role role) {
+        return user.toBuilder().roles(user.getRoles().stream()
+                .map(held -> role.getId().equals(held.getId()) ? role.copy() : held)
+                .collect(Collectors.toList())).build();
+    }
+
+    private static User stored(User user, boolean embedRoles) {
+        List<Role> roles = user.getRoles() == null ? new ArrayList<>() : user.getRoles().stream()
+                .filter(Objects::nonNull)
+                .map(role -> stored(role, embedRoles))
+                .collect(Collectors.toCollection(ArrayList::new));
+        return user.toBuilder().roles(roles).build();
+    }
+
+    private static Role stored(Role role, boolean embedRoles) {
+        return embedRoles ? role.copy() : Role.builder().id(role.getId()).build();
+    }
+}
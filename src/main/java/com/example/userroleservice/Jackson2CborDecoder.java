@@ -0,0 +1,81 @@
+package com.example.userroleservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Decodes CBOR with Jackson. Jackson has no non-blocking CBOR parser, so the body is read in full
+ * before it is decoded, and a stream of items is read from one CBOR array.
+ */
+class Jackson2CborDecoder implements Decoder<Object> {
+
+    private final ObjectMapper mapper;
+
+    Jackson2CborDecoder(ObjectMapper mapper) {
+        Assert.isInstanceOf(CBORFactory.class, mapper.getFactory());
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean canDecode(ResolvableType elementType, MimeType mimeType) {
+        return mimeType != null && UserRoleServiceApplication.APPLICATION_CBOR.isCompatibleWith(mimeType)
+                && mapper.canDeserialize(mapper.constructType(elementType.getType()));
+    }
+
+    @Override
+    public Flux<Object> decode(Publisher<DataBuffer> inputStream, ResolvableType elementType,
+                               MimeType mimeType, Map<String, Object> hints) {
+        JavaType listType = mapper.getTypeFactory()
+                .constructCollectionType(List.class, mapper.constructType(elementType.getType()));
+        return read(inputStream, listType).flatMapIterable(items -> (List<?>) items);
+    }
+
+    @Override
+    public Mono<Object> decodeToMono(Publisher<DataBuffer> inputStream, ResolvableType elementType,
+                                     MimeType mimeType, Map<String, Object> hints) {
+        return read(inputStream, mapper.constructType(elementType.getType()));
+    }
+
+    @Override
+    public List<MimeType> getDecodableMimeTypes() {
+        return Collections.singletonList(UserRoleServiceApplication.APPLICATION_CBOR);
+    }
+
+    // An empty body decodes to nothing
+    private Mono<Object> read(Publisher<DataBuffer> inputStream, JavaType type) {
+        return Flux.from(inputStream).collectList().flatMap(buffers -> {
+            try (InputStream in = new SequenceInputStream(Collections.enumeration(buffers.stream()
+                    .map(DataBuffer::asInputStream)
+                    .collect(Collectors.toList())))) {
+                if (buffers.stream().allMatch(buffer -> buffer.readableByteCount() == 0)) {
+                    return Mono.empty();
+                }
+                return Mono.just(mapper.readValue(in, type));
+            } catch (IOException e) {
+                return Mono.error(new DecodingException("CBOR decoding error: " + e.getMessage(), e));
+            } finally {
+                buffers.forEach(DataBufferUtils::release);
+            }
+        });
+    }
+}
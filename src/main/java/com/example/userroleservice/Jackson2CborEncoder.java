@@ -0,0 +1,19 @@
+package com.example.userroleservice;
+
+import org.springframework.http.codec.json.AbstractJackson2Encoder;
+import org.springframework.util.Assert;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Encodes CBOR with Jackson. A stream of items is written as one CBOR array, there is no streaming
+ * variant of the media type.
+ */
+class Jackson2CborEncoder extends AbstractJackson2Encoder {
+
+    Jackson2CborEncoder(ObjectMapper mapper) {
+        super(mapper, UserRoleServiceApplication.APPLICATION_CBOR);
+        Assert.isInstanceOf(CBORFactory.class, mapper.getFactory());
+    }
+}
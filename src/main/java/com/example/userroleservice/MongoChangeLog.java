@@ -0,0 +1,131 @@
+package com.example.userroleservice;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link ChangeLog} in a capped collection. Each record is inserted on its own, so appends run
+ * concurrently and may land out of token order. Readers therefore only see the changes below the
+ * first token of the oldest append still running, and a later read picks up the rest. Followers poll
+ * the log, woken by the appends of this instance, or after {@link #FOLLOW_RETRY} for other instances.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.engine", havingValue = "mongo", matchIfMissing = true)
+class MongoChangeLog implements ChangeLog {
+
+    private final ReactiveMongoOperations operations;
+    private final Mono<Void> collection;
+    // First tokens of the appends still running, guarded by this
+    private final NavigableSet<String> appending = new TreeSet<>();
+    private final DirectProcessor<String> appends = DirectProcessor.create();
+    private final FluxSink<String> appended = appends.sink();
+
+    MongoChangeLog(ReactiveMongoOperations operations,
+                   @Value("${changes.max-size-bytes:16777216}") long maxSizeBytes,
+                   @Value("${changes.max-documents:100000}") long maxDocuments) {
+        this.operations = operations;
+        CollectionOptions options = CollectionOptions.empty().capped().size(maxSizeBytes).maxDocuments(maxDocuments);
+        this.collection = operations.collectionExists(COLLECTION)
+                .flatMap(exists -> exists ? Mono.<Void>empty() : operations.createCollection(COLLECTION, options)
+                        .then()
+                        // another instance may have created it in the meantime
+                        .onErrorResume(e -> operations.collectionExists(COLLECTION)
+                                .flatMap(created -> created ? Mono.<Void>empty() : Mono.<Void>error(e))))
+                .cache();
+    }
+
+    // Tokens are assigned and registered together, so every token below the oldest running append
+    // belongs to an append that has ended
+    @Override
+    public Mono<Void> record(List<Change> changes) {
+        if (changes.isEmpty()) {
+            return Mono.empty();
+        }
+        return Mono.defer(() -> {
+            String first;
+            synchronized (this) {
+                changes.forEach(change -> change.setToken(new ObjectId().toHexString()));
+                first = changes.get(0).getToken();
+                appending.add(first);
+            }
+            return collection.thenMany(operations.insert(changes, COLLECTION))
+                    .then()
+                    .doOnSuccessOrError((v, error) -> {
+                        synchronized (this) {
+                            appending.remove(first);
+                        }
+                        appended.next(first);
+                    });
+        });
+    }
+
+    @Override
+    public Flux<Change> findSince(String token, int limit) {
+        return collection.thenMany(Flux.defer(() -> operations.find(visible(token).with(Sort.by("token")).limit(limit),
+                Change.class, COLLECTION)));
+    }
+
+    // The capped collection drops the oldest changes first
+    @Override
+    public Mono<Boolean> isRetained(String token) {
+        return collection.then(operations.findOne(new Query(), Change.class, COLLECTION))
+                .map(oldest -> oldest.getToken().compareTo(token) <= 0)
+                .defaultIfEmpty(true);
+    }
+
+    @Override
+    public Mono<String> latestToken() {
+        return collection.then(Mono.defer(() -> operations.findOne(visible(null).with(Sort.by(Sort.Direction.DESC, "token")),
+                Change.class, COLLECTION))).map(Change::getToken);
+    }
+
+    @Override
+    public Flux<Change> follow(String token) {
+        Mono<String> start = token != null ? Mono.just(token) : latestToken();
+        return start.map(first -> new AtomicReference<>(first))
+                .defaultIfEmpty(new AtomicReference<String>())
+                .flatMapMany(last -> Flux.defer(() -> findSince(last.get(), Integer.MAX_VALUE))
+                        .doOnNext(change -> last.set(change.getToken()))
+                        .repeatWhen(completions -> completions.concatMap(completed ->
+                                Mono.first(appends.next().then(), Mono.delay(FOLLOW_RETRY).then()))));
+    }
+
+    // Changes after the token and below the oldest running append
+    private Query visible(String token) {
+        String horizon;
+        synchronized (this) {
+            horizon = appending.isEmpty() ? null : appending.first();
+        }
+        if (token == null && horizon == null) {
+            return new Query();
+        }
+        Criteria criteria = where("token");
+        if (token != null) {
+            criteria = criteria.gt(token);
+        }
+        if (horizon != null) {
+            criteria = criteria.lt(horizon);
+        }
+        return query(criteria);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.userroleservice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Driver-level view of MongoDB round trips: one timer sample per command sent, including the
+ * {@code getMore}s of long cursors, and the number of documents each query reply carried.
+ * <p>
+ * Commands are also counted per request. {@link RequestCountingMongoDatabaseFactory} marks the
+ * thread on which a subscriber carrying the {@link RouteMetricsWebFilter#DB_CALLS} counter
+ * subscribes to, requests from or cancels a driver publisher, and a command started on that thread
+ * is added to its counter. The {@code getMore}s of a cursor count for the request that opened it,
+ * whichever thread sends them. A command the driver defers until it has opened a connection is
+ * sent from one of its own threads and goes uncounted.
+ */
+class MongoCommandMetrics implements CommandListener {
+
+    private static final ThreadLocal<AtomicInteger> REQUEST_CALLS = new ThreadLocal<>();
+
+    private final MeterRegistry registry;
+    private final Map<Integer, Attributed> started = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicInteger> cursors = new ConcurrentHashMap<>();
+
+    MongoCommandMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    // Runs the action with the commands it starts on this thread counted by the counter, or by none
+    static void countingCalls(AtomicInteger calls, Runnable action) {
+        AtomicInteger previous = REQUEST_CALLS.get();
+        set(calls);
+        try {
+            action.run();
+        } finally {
+            set(previous);
+        }
+    }
+
+    private static void set(AtomicInteger calls) {
+        if (calls == null) {
+            REQUEST_CALLS.remove();
+        } else {
+            REQUEST_CALLS.set(calls);
+        }
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        BsonDocument command = event.getCommand();
+        long cursorId = "getMore".equals(event.getCommandName()) ? cursorId(command.get("getMore")) : 0;
+        if ("killCursors".equals(event.getCommandName()) && command.isArray("cursors")) {
+            command.getArray("cursors").forEach(id -> cursors.remove(cursorId(id)));
+        }
+        AtomicInteger calls = REQUEST_CALLS.get();
+        if (calls == null && cursorId != 0) {
+            calls = cursors.get(cursorId);
+        }
+        if (calls != null) {
+            calls.incrementAndGet();
+            started.put(event.getRequestId(), new Attributed(calls, cursorId));
+        }
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        registry.timer("mongodb.commands", "command", event.getCommandName(), "outcome", "success")
+                .record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        Attributed attributed = started.remove(event.getRequestId());
+        BsonValue cursor = event.getResponse().get("cursor");
+        if (cursor != null && cursor.isDocument()) {
+            BsonDocument batch = cursor.asDocument();
+            BsonValue documents = batch.containsKey("firstBatch") ? batch.get("firstBatch") : batch.get("nextBatch");
+            if (documents != null && documents.isArray()) {
+                registry.summary("mongodb.documents", "command", event.getCommandName())
+                        .record(((BsonArray) documents).size());
+            }
+            // A cursor with more to read keeps its id until it is exhausted
+            long cursorId = cursorId(batch.get("id"));
+            if (attributed != null && cursorId != 0) {
+                cursors.put(cursorId, attributed.calls);
+            } else if (attributed != null && attributed.cursorId != 0) {
+                cursors.remove(attributed.cursorId);
+            }
+        }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        registry.timer("mongodb.commands", "command", event.getCommandName(), "outcome", "error")
+                .record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        Attributed attributed = started.remove(event.getRequestId());
+        if (attributed != null && attributed.cursorId != 0) {
+            cursors.remove(attributed.cursorId);
+        }
+    }
+
+    private static long cursorId(BsonValue id) {
+        return id != null && id.isNumber() ? id.asNumber().longValue() : 0;
+    }
+
+    private static final class Attributed {
+        private final AtomicInteger calls;
+        private final long cursorId;
+
+        private Attributed(AtomicInteger calls, long cursorId) {
+            this.calls = calls;
+            this.cursorId = cursorId;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.userroleservice;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Wraps the services and repositories so every {@code Mono}/{@code Flux} they return is timed from
+ * subscription to termination, and the documents repository calls return are counted per call.
+ * The database calls of each request are counted by {@link MongoCommandMetrics}.
+ */
+@Component
+class ReactiveMetricsPostProcessor implements BeanPostProcessor {
+
+    private final ObjectProvider<MeterRegistry> registry;
+
+    ReactiveMetricsPostProcessor(ObjectProvider<MeterRegistry> registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        String component = component(bean);
+        if (component == null) {
+            return bean;
+        }
+        ProxyFactory factory = new ProxyFactory();
+        factory.setTarget(bean);
+        if (bean instanceof UserRepository) {
+            factory.addInterface(UserRepository.class);
+        } else if (bean instanceof RoleRepository) {
+            factory.addInterface(RoleRepository.class);
+        } else {
+            factory.setProxyTargetClass(true);
+        }
+        factory.addAdvice(new Interceptor(component, !factory.isProxyTargetClass()));
+        return factory.getProxy();
+    }
+
+    private static String component(Object bean) {
+        if (bean instanceof UserService) {
+            return "user.service";
+        } else if (bean instanceof RoleService) {
+            return "role.service";
+        } else if (bean instanceof UserRepository) {
+            return "user.repository";
+        } else if (bean instanceof RoleRepository) {
+            return "role.repository";
+        }
+        return null;
+    }
+
+    private class Interceptor implements MethodInterceptor {
+        private final String component;
+        private final boolean repository;
+
+        private Interceptor(String component, boolean repository) {
+            this.component = component;
+            this.repository = repository;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Object result = invocation.proceed();
+            String method = invocation.getMethod().getName();
+            if (result instanceof Mono) {
+                return instrument((Mono<?>) result, method);
+            } else if (result instanceof Flux) {
+                return instrument((Flux<?>) result, method);
+            }
+            return result;
+        }
+
+        private <T> Mono<T> instrument(Mono<T> mono, String method) {
+            return Mono.defer(() -> {
+                long start = System.nanoTime();
+                AtomicLong elements = new AtomicLong();
+                return mono.doOnNext(element -> elements.incrementAndGet())
+                        .doFinally(signal -> record(method, signal, start, elements.get()));
+            });
+        }
+
+        private <T> Flux<T> instrument(Flux<T> flux, String method) {
+            return Flux.defer(() -> {
+                long start = System.nanoTime();
+                AtomicLong elements = new AtomicLong();
+                return flux.doOnNext(element -> elements.incrementAndGet())
+                        .doFinally(signal -> record(method, signal, start, elements.get()));
+            });
+        }
+
+        private void record(String method, SignalType signal, long start, long elements) {
+            MeterRegistry meters = registry.getObject();
+            String outcome = signal == SignalType.ON_ERROR ? "error" : signal == SignalType.CANCEL ? "cancel" : "success";
+            String prefix = repository ? "userrole.repository" : "userrole.service";
+            meters.timer(prefix + ".calls", "component", component, "method", method, "outcome", outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (repository) {
+                meters.summary(prefix + ".documents", "component", component, "method", method).record(elements);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.userroleservice;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+import reactor.core.CoreSubscriber;
+
+/**
+ * Hands out databases whose collections and publishers let {@link MongoCommandMetrics} count the
+ * commands they send for the request they are sent for. A subscriber carrying the
+ * {@link RouteMetricsWebFilter#DB_CALLS} counter in its context subscribes, requests and cancels
+ * with the counter marked on its thread; any other subscriber with no counter marked, so its
+ * commands aren't counted for a request that happens to be running on the same thread.
+ */
+class RequestCountingMongoDatabaseFactory extends SimpleReactiveMongoDatabaseFactory {
+
+    private static final String DRIVER_PACKAGE = MongoDatabase.class.getPackage().getName();
+
+    RequestCountingMongoDatabaseFactory(MongoClient mongoClient, String databaseName) {
+        super(mongoClient, databaseName);
+    }
+
+    @Override
+    public MongoDatabase getMongoDatabase() throws DataAccessException {
+        return counting(super.getMongoDatabase(), MongoDatabase.class);
+    }
+
+    @Override
+    public MongoDatabase getMongoDatabase(String dbName) throws DataAccessException {
+        return counting(super.getMongoDatabase(dbName), MongoDatabase.class);
+    }
+
+    // Driver interfaces returned by the target are wrapped in turn, down to the publishers
+    @SuppressWarnings("unchecked")
+    private static <T> T counting(T target, Class<?> type) {
+        if (Proxy.isProxyClass(target.getClass()) && Proxy.getInvocationHandler(target) instanceof Counting) {
+            return target;
+        }
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new Counting(target));
+    }
+
+    private static final class Counting implements InvocationHandler {
+        private final Object target;
+
+        private Counting(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (target instanceof Publisher && method.getName().equals("subscribe") && args != null && args.length == 1) {
+                subscribe((Publisher<Object>) target, (Subscriber<Object>) args[0]);
+                return null;
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            Class<?> type = method.getReturnType();
+            if (result != null && type.isInterface()
+                    && (type == Publisher.class || type.getName().startsWith(DRIVER_PACKAGE + "."))) {
+                return counting(result, type);
+            }
+            return result;
+        }
+
+        private static void subscribe(Publisher<Object> publisher, Subscriber<Object> subscriber) {
+            AtomicInteger calls = subscriber instanceof CoreSubscriber
+                    ? ((CoreSubscriber<Object>) subscriber).currentContext()
+                            .<AtomicInteger>getOrEmpty(RouteMetricsWebFilter.DB_CALLS).orElse(null)
+                    : null;
+            MongoCommandMetrics.countingCalls(calls, () -> publisher.subscribe(new CountingSubscriber<>(subscriber, calls)));
+        }
+    }
+
+    private static final class CountingSubscriber<T> implements Subscriber<T> {
+        private final Subscriber<T> actual;
+        private final AtomicInteger calls;
+
+        private CountingSubscriber(Subscriber<T> actual, AtomicInteger calls) {
+            this.actual = actual;
+            this.calls = calls;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            actual.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    MongoCommandMetrics.countingCalls(calls, () -> subscription.request(n));
+                }
+
+                @Override
+                public void cancel() {
+                    MongoCommandMetrics.countingCalls(calls, subscription::cancel);
+                }
+            });
+        }
+
+        @Override
+        public void onNext(T item) {
+            actual.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            actual.onError(error);
+        }
+
+        @Override
+        public void onComplete() {
+            actual.onComplete();
+        }
+    }
+}
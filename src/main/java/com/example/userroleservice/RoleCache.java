@@ -0,0 +1,116 @@
+package com.example.userroleservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Bounded, least-recently-used cache of roles in front of {@link RoleRepository}. Entries expire
+ * after a fixed time to live so writes that bypass {@link RoleService} are eventually picked up.
+ * Roles are copied on the way in, so the role a caller put stays its own, and handed out shared:
+ * only reads are served from the cache, and code that modifies roles works on roles it read or
+ * built itself. Its size, hits, misses and evictions are bound as {@code userrole.role.cache.*} meters.
+ */
+@Component
+class RoleCache implements MeterBinder {
+
+    private final int maximumSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    RoleCache(@Value("${role.cache.maximum-size:10000}") int maximumSize,
+              @Value("${role.cache.ttl-seconds:300}") long ttlSeconds) {
+        this.maximumSize = maximumSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > RoleCache.this.maximumSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized Role get(String id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (System.nanoTime() - entry.createdAt > ttlNanos) {
+            entries.remove(id);
+            evictions.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.role;
+    }
+
+    // Returns the role given, which the caller may go on modifying
+    synchronized Role put(Role role) {
+        if (role != null && role.getId() != null) {
+            entries.put(role.getId(), new Entry(role.copy(), System.nanoTime()));
+        }
+        return role;
+    }
+
+    synchronized void invalidate(String id) {
+        entries.remove(id);
+    }
+
+    // For writes that replace all roles at once
+    synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("userrole.role.cache.size", this, RoleCache::size).register(registry);
+        FunctionCounter.builder("userrole.role.cache.gets", this, RoleCache::hitCount).tag("result", "hit").register(registry);
+        FunctionCounter.builder("userrole.role.cache.gets", this, RoleCache::missCount).tag("result", "miss").register(registry);
+        FunctionCounter.builder("userrole.role.cache.evictions", this, RoleCache::evictionCount).register(registry);
+    }
+
+    private static final class Entry {
+        private final Role role;
+        private final long createdAt;
+
+        private Entry(Role role, long createdAt) {
+            this.role = role;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.userroleservice;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * In-memory answer to "does user U hold role R". Role ids are interned to small integers and each
+ * indexed user maps to a {@link BitSet} of them. Users are indexed when first checked; writes
+ * through {@link UserService} evict them and deleting a role retires its number. Like
+ * {@link RoleCache} the index is bounded and least-recently-used, and entries expire after a fixed
+ * time to live so writes that bypass the services or come from other instances are eventually
+ * picked up. Its size, hits and misses are bound as {@code userrole.membership.*} meters.
+ */
+@Component
+class RoleMembershipIndex implements MeterBinder {
+
+    // Evictions are counted per stripe of users, so a write only turns away the fills of its stripe
+    private static final int STRIPES = 1024;
+
+    private final int maximumSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    private final Map<String, Integer> roleNumbers = new HashMap<>();
+    private final long[] stripeWrites = new long[STRIPES];
+    private int nextRoleNumber;
+    private long allWrites;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    RoleMembershipIndex(@Value("${membership.maximum-size:100000}") int maximumSize,
+                        @Value("${membership.ttl-seconds:30}") long ttlSeconds) {
+        this.maximumSize = maximumSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > RoleMembershipIndex.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * @return whether the user holds the role, or {@code null} when the user isn't indexed
+     */
+    synchronized Boolean hasRole(String userId, String roleId) {
+        Entry entry = entries.get(userId);
+        if (entry == null || System.nanoTime() - entry.createdAt > ttlNanos) {
+            if (entry != null) {
+                entries.remove(userId);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Integer roleNumber = roleNumbers.get(roleId);
+        return roleNumber != null && entry.roles.get(roleNumber);
+    }
+
+    // Taken before reading a user to fill the index with, and changed by every eviction that may concern the user
+    synchronized long stamp(String userId) {
+        return allWrites + stripeWrites[stripe(userId)];
+    }
+
+    // Indexes a user read with its roles resolved, unless the user may have been written since the stamp was taken
+    synchronized void fill(User user, long stamp) {
+        if (stamp(user.getUserId()) == stamp) {
+            entries.put(user.getUserId(), new Entry(toBitSet(user.getRoles()), System.nanoTime()));
+        }
+    }
+
+    // Called once a write to the user has completed, successfully or not
+    synchronized void invalidate(String userId) {
+        entries.remove(userId);
+        stripeWrites[stripe(userId)]++;
+    }
+
+    // Role numbers are never reused, so a role re-created with the same id starts with no holders.
+    // Called when the role is deleted and again once its users are detached from it.
+    synchronized void removeRole(String roleId) {
+        roleNumbers.remove(roleId);
+        allWrites++;
+    }
+
+    // For writes that replace all users at once
+    synchronized void invalidateAll() {
+        entries.clear();
+        allWrites++;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("userrole.membership.size", this, RoleMembershipIndex::size).register(registry);
+        FunctionCounter.builder("userrole.membership.checks", this, RoleMembershipIndex::hitCount).tag("result", "hit").register(registry);
+        FunctionCounter.builder("userrole.membership.checks", this, RoleMembershipIndex::missCount).tag("result", "miss").register(registry);
+    }
+
+    private BitSet toBitSet(List<Role> roles) {
+        BitSet bits = new BitSet();
+        if (roles != null) {
+            roles.stream()
+                    .filter(Objects::nonNull)
+                    .map(Role::getId)
+                    .filter(Objects::nonNull)
+                    .forEach(id -> bits.set(roleNumbers.computeIfAbsent(id, k -> nextRoleNumber++)));
+        }
+        return bits;
+    }
+
+    private static int stripe(String userId) {
+        return (userId.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    private static final class Entry {
+        private final BitSet roles;
+        private final long createdAt;
+
+        private Entry(BitSet roles, long createdAt) {
+            this.roles = roles;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.userroleservice;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.List;
+
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+interface RoleRepositoryCustom {
+    Flux<BulkItemResult> upsertAll(List<Role> roles);
+    Mono<Role> findAndReplace(Role role, Long expectedVersion);
+    Mono<Role> findAndRemoveById(String id);
+}
+
+class RoleRepositoryImpl implements RoleRepositoryCustom {
+    private final ReactiveMongoOperations operations;
+    public RoleRepositoryImpl(ReactiveMongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public Flux<BulkItemResult> upsertAll(List<Role> roles) {
+        return BulkWrites.upsertAll(operations, roles, Role::getId, Role.class);
+    }
+
+    // With an expected version the replace only applies to that version and fails on a newer one
+    @Override
+    public Mono<Role> findAndReplace(Role role, Long expectedVersion) {
+        Criteria byId = where("id").is(role.getId());
+        return operations.findAndModify(query(Versions.matching(byId, expectedVersion)),
+                Versions.bump(new Update()
+                        .set("rolename", role.getRolename())
+                        .set("description", role.getDescription())),
+                FindAndModifyOptions.options().returnNew(true), Role.class)
+                .switchIfEmpty(expectedVersion == null
+                        ? Mono.empty()
+                        : Versions.conflictIfExists(operations, query(byId), Role.class, expectedVersion));
+    }
+
+    @Override
+    public Mono<Role> findAndRemoveById(String id) {
+        return operations.findAndRemove(query(where("id").is(id)), Role.class);
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.userroleservice;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+/**
+ * Times every request per route (see {@link Routes}), from the first filter until the response body is written, and
+ * records how many database commands the request sent (see {@link MongoCommandMetrics}); the
+ * in-memory engine sends none.
+ * Requests shed by {@link AdmissionControlWebFilter} are timed too.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+class RouteMetricsWebFilter implements WebFilter {
+
+    static final String DB_CALLS = RouteMetricsWebFilter.class.getName() + ".dbCalls";
+
+    private final MeterRegistry registry;
+
+    RouteMetricsWebFilter(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        String route = Routes.of(exchange.getRequest());
+        AtomicInteger dbCalls = new AtomicInteger();
+        long start = System.nanoTime();
+        return chain.filter(exchange)
+                .doFinally(signal -> {
+                    HttpStatus status = exchange.getResponse().getStatusCode();
+                    registry.timer("userrole.route.requests",
+                            "route", route,
+                            "status", String.valueOf(status == null ? HttpStatus.OK.value() : status.value()))
+                            .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    registry.summary("userrole.route.db.calls", "route", route).record(dbCalls.get());
+                })
+                .subscriberContext(Context.of(DB_CALLS, dbCalls));
+    }
+}
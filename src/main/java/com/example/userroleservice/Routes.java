@@ -0,0 +1,68 @@
+package com.example.userroleservice;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.server.PathContainer;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+
+/**
+ * The routes of {@link UserRoleServiceApplication#routes} as {@link RouteMetricsWebFilter} and
+ * {@link AdmissionControlWebFilter} name them, and how a request asks for a stream, shared by the
+ * router and the filters so they can't drift apart.
+ */
+final class Routes {
+
+    static final String OTHER = "other";
+
+    // Most specific first; kept in line with UserRoleServiceApplication.routes
+    private static final List<PathPattern> PATTERNS = parse(
+            "/api/user/_bulk",
+            "/api/user/_has-role",
+            "/api/user/_mget",
+            "/api/user/{id}/has-role/{roleId}",
+            "/api/user/{id}",
+            "/api/user",
+            "/api/role/_bulk",
+            "/api/role/_mget",
+            "/api/role/{id}/users",
+            "/api/role/{id}",
+            "/api/role",
+            "/api/changes");
+
+    private Routes() {
+    }
+
+    // The method and path pattern of the request, or OTHER outside the API
+    static String of(ServerHttpRequest request) {
+        PathContainer path = request.getPath().pathWithinApplication();
+        for (PathPattern pattern : PATTERNS) {
+            if (pattern.matches(path)) {
+                return request.getMethodValue() + " " + pattern.getPatternString();
+            }
+        }
+        return OTHER;
+    }
+
+    static boolean isStreaming(ServerHttpRequest request) {
+        return streamingMediaType(request.getHeaders().getAccept()).isPresent();
+    }
+
+    // Only an explicit streaming media type selects a stream, never a wildcard Accept header
+    static Optional<MediaType> streamingMediaType(List<MediaType> accept) {
+        return accept.stream()
+                .filter(accepted -> !accepted.isWildcardType() && !accepted.isWildcardSubtype())
+                .flatMap(accepted -> UserRoleServiceApplication.STREAMING_MEDIA_TYPES.stream().filter(accepted::isCompatibleWith))
+                .findFirst();
+    }
+
+    private static List<PathPattern> parse(String... patterns) {
+        PathPatternParser parser = new PathPatternParser();
+        return Arrays.stream(patterns).map(parser::parse).collect(Collectors.toList());
+    }
+}
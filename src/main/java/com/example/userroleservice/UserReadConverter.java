@@ -0,0 +1,61 @@
+package com.example.userroleservice;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.bson.Document;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+
+import com.mongodb.DBRef;
+
+/**
+ * Reads {@link User} documents without dereferencing their role {@link DBRef}s. Each reference
+ * becomes a {@link Role} carrying only its id, which {@link UserService} resolves in batches.
+ * Embedded role snapshots (see {@link UserWriteConverter}) are read as they are.
+ */
+@ReadingConverter
+class UserReadConverter implements Converter<Document, User> {
+
+    @Override
+    public User convert(Document source) {
+        List<Role> roles = new ArrayList<>();
+        Object refs = source.get("roles");
+        if (refs instanceof List) {
+            for (Object ref : (List<?>) refs) {
+                if (ref instanceof DBRef) {
+                    roles.add(Role.builder().id(Objects.toString(((DBRef) ref).getId(), null)).build());
+                } else if (ref instanceof Document) {
+                    roles.add(snapshot((Document) ref));
+                }
+            }
+        }
+        return User.builder()
+                .userId(Objects.toString(source.get("_id"), null))
+                .name(source.getString("name"))
+                .roles(roles)
+                .version(version(source))
+                .lastModified(lastModified(source))
+                .build();
+    }
+
+    private static Role snapshot(Document source) {
+        return Role.builder()
+                .id(Objects.toString(source.get("_id"), null))
+                .rolename(source.getString("rolename"))
+                .description(source.getString("description"))
+                .version(version(source))
+                .lastModified(lastModified(source))
+                .build();
+    }
+
+    private static Long version(Document source) {
+        return source.get(Versions.VERSION) == null ? null : ((Number) source.get(Versions.VERSION)).longValue();
+    }
+
+    private static Instant lastModified(Document source) {
+        return source.getDate(Versions.LAST_MODIFIED) == null ? null : source.getDate(Versions.LAST_MODIFIED).toInstant();
+    }
+}
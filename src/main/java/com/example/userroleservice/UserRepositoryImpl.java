@@ -0,0 +1,352 @@
+package com.example.userroleservice;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.DBRef;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.reactivestreams.client.FindPublisher;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+interface UserRepositoryCustom {
+    Flux<BulkItemResult> upsertAll(List<User> users);
+    Mono<User> findAndReplace(User user, Long expectedVersion);
+    Mono<User> findAndRemoveById(String userId);
+    Mono<User> findAndUpdateRoles(String userId, Collection<Role> add, Collection<String> remove);
+    Flux<User> findAllById(Collection<String> userIds, Fields fields);
+    Flux<User> findPage(String after, int limit, Fields fields);
+    Flux<User> findByRoleId(String roleId, String after, int limit, Fields fields);
+    Flux<String> removeRoleFromAll(String roleId);
+    Flux<String> updateEmbeddedRoles(List<Role> roles);
+    Flux<User> findWithRoleReferences();
+    Mono<String> ensureIndexes();
+    boolean embedsRoles();
+}
+
+/**
+ * With {@code storage.embed-roles=true} users embed a snapshot of each of their roles (see
+ * {@link UserWriteConverter}) rather than a reference to it. The query and update mappers would turn
+ * those snapshots into references, so the writes and queries on roles go to the driver directly then.
+ * The reads taking {@link Fields} go to the driver too, fetching only the requested fields.
+ */
+class UserRepositoryImpl implements UserRepositoryCustom {
+    private static final String EMBEDDED_ROLE_ID = "roles._id";
+    private static final int PATCH_CONFLICT_RETRIES = 5;
+    private static final int HOLDER_BATCH_SIZE = 1000;
+
+    private final ReactiveMongoOperations operations;
+    private final boolean embedRoles;
+    public UserRepositoryImpl(ReactiveMongoOperations operations, @Value("${storage.embed-roles:false}") boolean embedRoles) {
+        this.operations = operations;
+        this.embedRoles = embedRoles;
+    }
+
+    @Override
+    public boolean embedsRoles() {
+        return embedRoles;
+    }
+
+    @Override
+    public Flux<BulkItemResult> upsertAll(List<User> users) {
+        return BulkWrites.upsertAll(operations, users, User::getUserId, User.class);
+    }
+
+    // With an expected version the replace only applies to that version and fails on a newer one
+    @Override
+    public Mono<User> findAndReplace(User user, Long expectedVersion) {
+        List<String> roleIds = user.getRoles() == null ? null : user.getRoles().stream()
+                .filter(Objects::nonNull)
+                .map(Role::getId)
+                .collect(Collectors.toList());
+        Criteria byId = where("userId").is(user.getUserId());
+        Mono<User> replaced = embedRoles
+                ? modifyEmbedded(query(Versions.matching(where("_id").is(user.getUserId()), expectedVersion)).getQueryObject(),
+                        new Document("$set", new Document("name", user.getName()).append("roles", roleSnapshots(user.getRoles()))))
+                : operations.findAndModify(query(Versions.matching(byId, expectedVersion)),
+                        Versions.bump(new Update()
+                                .set("name", user.getName())
+                                .set("roles", roleIds == null ? null : roleRefs(roleIds))),
+                        FindAndModifyOptions.options().returnNew(true), User.class);
+        return replaced
+                .switchIfEmpty(expectedVersion == null
+                        ? Mono.empty()
+                        : Versions.conflictIfExists(operations, query(byId), User.class, expectedVersion));
+    }
+
+    @Override
+    public Mono<User> findAndRemoveById(String userId) {
+        return operations.findAndRemove(query(where("userId").is(userId)), User.class);
+    }
+
+    // $addToSet and $pullAll can't target the same field in one update, so a patch doing both takes two
+    @Override
+    public Mono<User> findAndUpdateRoles(String userId, Collection<Role> added, Collection<String> remove) {
+        added = added == null ? Collections.emptyList() : added;
+        remove = remove == null ? Collections.emptyList() : remove;
+        if (added.isEmpty() && remove.isEmpty()) {
+            return operations.findById(userId, User.class);
+        }
+        if (embedRoles) {
+            return updateEmbeddedRoles(userId, added, remove);
+        }
+        List<String> add = added.stream().map(Role::getId).collect(Collectors.toList());
+        if (add.isEmpty()) {
+            return modify(userId, new Update().pullAll("roles", roleRefs(remove).toArray()));
+        }
+        Update addRoles = new Update();
+        addRoles.addToSet("roles").each(roleRefs(add).toArray());
+        if (remove.isEmpty()) {
+            return modify(userId, addRoles);
+        }
+        return modify(userId, new Update().pullAll("roles", roleRefs(remove).toArray()))
+                .flatMap(user -> modify(userId, addRoles));
+    }
+
+    @Override
+    public Flux<User> findAllById(Collection<String> userIds, Fields fields) {
+        return find(new Document("_id", new Document("$in", new ArrayList<>(userIds))), 0, fields);
+    }
+
+    // A limit of 0 means no limit
+    @Override
+    public Flux<User> findPage(String after, int limit, Fields fields) {
+        return find(after(new Document(), after), limit, fields);
+    }
+
+    // A limit of 0 means no limit
+    @Override
+    public Flux<User> findByRoleId(String roleId, String after, int limit, Fields fields) {
+        Document filter = embedRoles ? new Document(EMBEDDED_ROLE_ID, roleId) : new Document("roles", roleRef(roleId));
+        return find(after(filter, after), limit, fields);
+    }
+
+    @Override
+    public Flux<String> removeRoleFromAll(String roleId) {
+        if (embedRoles) {
+            Document update = Versions.bump(new Update()).getUpdateObject()
+                    .append("$pull", new Document("roles", new Document("_id", roleId)));
+            return updateHolders(new Document(EMBEDDED_ROLE_ID, roleId), update);
+        }
+        DBRef role = roleRef(roleId);
+        return updateHolders(new Document("roles", role), Versions.bump(new Update().pull("roles", role)).getUpdateObject());
+    }
+
+    // Replaces the snapshot of each role in the users embedding it. The user versions are left alone,
+    // their tags change with the role versions. A user already holding a newer snapshot keeps it, so
+    // fan-outs of one role may run in any order.
+    @Override
+    public Flux<String> updateEmbeddedRoles(List<Role> roles) {
+        if (!embedRoles || roles.isEmpty()) {
+            return Flux.empty();
+        }
+        return Flux.fromIterable(roles)
+                .concatMap(role -> updateHolders(new Document("roles", new Document("$elemMatch", olderSnapshot(role))),
+                        new Document("$set", new Document("roles.$", UserWriteConverter.snapshot(role)))))
+                .distinct();
+    }
+
+    // Users written before roles were embedded, which still hold {$ref, $id} references. Only read
+    // once at startup, so the users are scanned rather than indexed for it.
+    @Override
+    public Flux<User> findWithRoleReferences() {
+        if (!embedRoles) {
+            return Flux.empty();
+        }
+        return find(new Document("roles.$ref", new Document("$exists", true)), 0, Fields.ALL);
+    }
+
+    // Role references are stored as {$ref, $id} documents, so equality on "roles" is an index lookup.
+    // Role pages also walk the ids in order from a cursor, so the index holds both and no page is
+    // sorted in memory. The role-only index it replaces is dropped.
+    @Override
+    public Mono<String> ensureIndexes() {
+        String role = embedRoles ? EMBEDDED_ROLE_ID : "roles";
+        return operations.execute(collectionName(), collection -> Flux.from(collection.listIndexes())
+                .filter(index -> (role + "_1").equals(index.getString("name")))
+                .concatMap(index -> collection.dropIndex(index.getString("name")))
+                .thenMany(collection.createIndex(new Document(role, 1).append("_id", 1))))
+                .next();
+    }
+
+    // Updates the users matching the filter a batch of ids at a time, walking the ids in order, and
+    // returns the ids of each batch once it is updated. A user read but changed before the update may
+    // no longer match and is returned all the same.
+    private Flux<String> updateHolders(Document filter, Document update) {
+        return updateHolders(filter, update, null);
+    }
+
+    private Flux<String> updateHolders(Document filter, Document update, String after) {
+        return operations.execute(collectionName(), collection -> Flux.from(collection
+                        .find(after(new Document(filter), after))
+                        .projection(new Document("_id", 1))
+                        .sort(new Document("_id", 1))
+                        .limit(HOLDER_BATCH_SIZE))
+                .map(holder -> holder.getString("_id"))
+                .collectList()
+                .flatMapMany(ids -> ids.isEmpty() ? Flux.<String>empty() : Flux.from(collection.updateMany(
+                                new Document(filter).append("_id", new Document("$in", ids)), update))
+                        .thenMany(Flux.fromIterable(ids))
+                        .concatWith(ids.size() < HOLDER_BATCH_SIZE
+                                ? Flux.<String>empty()
+                                : Flux.defer(() -> updateHolders(filter, update, ids.get(ids.size() - 1))))));
+    }
+
+    private Flux<User> find(Document filter, int limit, Fields fields) {
+        Document projection = projection(fields);
+        return operations.execute(collectionName(), collection -> {
+            FindPublisher<Document> found = collection.find(filter).sort(new Document("_id", 1)).limit(limit);
+            return projection == null ? found : found.projection(projection);
+        }).map(this::read);
+    }
+
+    private static Document after(Document filter, String after) {
+        return after == null ? filter : filter.append("_id", new Document("$gt", after));
+    }
+
+    // The id is always fetched, and the versions for the tags. Role references are fetched whole, they
+    // hold nothing but the id; role snapshots only with the requested fields.
+    private Document projection(Fields fields) {
+        if (fields.isAll()) {
+            return null;
+        }
+        Document projection = new Document(Versions.VERSION, 1).append(Versions.LAST_MODIFIED, 1);
+        if (fields.contains("name")) {
+            projection.append("name", 1);
+        }
+        if (fields.contains("roles") || !embedRoles && fields.touches("roles")) {
+            projection.append("roles", 1);
+        } else if (fields.touches("roles")) {
+            projection.append(EMBEDDED_ROLE_ID, 1);
+            for (String field : Arrays.asList("rolename", "description")) {
+                if (fields.contains("roles." + field)) {
+                    projection.append("roles." + field, 1);
+                }
+            }
+            if (fields.needsRoleDetails()) {
+                projection.append("roles." + Versions.VERSION, 1).append("roles." + Versions.LAST_MODIFIED, 1);
+            }
+        }
+        return projection;
+    }
+
+    private Mono<User> modify(String userId, Update update) {
+        return operations.findAndModify(query(where("userId").is(userId)), Versions.bump(update),
+                FindAndModifyOptions.options().returnNew(true), User.class);
+    }
+
+    // One update setting the patched roles, so a held role being replaced by a newer snapshot is never
+    // missing and the version goes up by one. $pull, $push and positional $set on the same array can't
+    // be combined, so the roles are read first and the update only applies to the version read; after a
+    // concurrent write the roles are read again.
+    private Mono<User> updateEmbeddedRoles(String userId, Collection<Role> add, Collection<String> remove) {
+        Document byId = new Document("_id", userId);
+        return operations.execute(collectionName(), collection -> collection.find(byId)
+                        .projection(new Document("roles", 1).append(Versions.VERSION, 1))
+                        .first())
+                .next()
+                .flatMap(current -> {
+                    Long version = current.get(Versions.VERSION) == null ? 0L : ((Number) current.get(Versions.VERSION)).longValue();
+                    Document filter = query(Versions.matching(where("_id").is(userId), version)).getQueryObject();
+                    return modifyEmbedded(filter, new Document("$set", new Document("roles", patchedRoles(current, add, remove))))
+                            .switchIfEmpty(Mono.error(new OptimisticLockingFailureException(
+                                    "Version " + version + " of " + userId + " changed while patching its roles")));
+                })
+                .retry(PATCH_CONFLICT_RETRIES, OptimisticLockingFailureException.class::isInstance);
+    }
+
+    // Held roles keep their place, replaced by the added snapshot unless they hold a newer one; roles
+    // not held yet are appended
+    private static List<Object> patchedRoles(Document current, Collection<Role> add, Collection<String> remove) {
+        Map<String, Role> adding = new LinkedHashMap<>();
+        add.forEach(role -> adding.put(role.getId(), role));
+        List<Object> roles = new ArrayList<>();
+        Object held = current.get("roles");
+        if (held instanceof List) {
+            for (Object role : (List<?>) held) {
+                String id = roleId(role);
+                Role added = adding.remove(id);
+                if (remove.contains(id) && added == null) {
+                    continue;
+                }
+                roles.add(added == null || isNewer(role, added) ? role : UserWriteConverter.snapshot(added));
+            }
+        }
+        adding.values().forEach(role -> roles.add(UserWriteConverter.snapshot(role)));
+        return roles;
+    }
+
+    // Reference-mode entries are DBRefs until they are migrated
+    private static String roleId(Object role) {
+        Object id = role instanceof DBRef ? ((DBRef) role).getId() : role instanceof Document ? ((Document) role).get("_id") : null;
+        return Objects.toString(id, null);
+    }
+
+    private static boolean isNewer(Object held, Role added) {
+        if (!(held instanceof Document) || added.getVersion() == null) {
+            return false;
+        }
+        Object version = ((Document) held).get(Versions.VERSION);
+        return version instanceof Number && ((Number) version).longValue() > added.getVersion();
+    }
+
+    private static Document olderSnapshot(Role role) {
+        Document snapshot = new Document("_id", role.getId());
+        if (role.getVersion() != null) {
+            snapshot.append(Versions.VERSION, new Document("$not", new Document("$gte", role.getVersion())));
+        }
+        return snapshot;
+    }
+
+    private Mono<User> modifyEmbedded(Document filter, Document update) {
+        Document bumped = Versions.bump(new Update()).getUpdateObject();
+        bumped.putAll(update);
+        return operations.execute(collectionName(), collection ->
+                collection.findOneAndUpdate(filter, bumped, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)))
+                .next()
+                .map(this::read);
+    }
+
+    private List<Document> roleSnapshots(Collection<Role> roles) {
+        return roles == null ? null : roles.stream()
+                .filter(Objects::nonNull)
+                .map(UserWriteConverter::snapshot)
+                .collect(Collectors.toList());
+    }
+
+    private User read(Document document) {
+        return operations.getConverter().read(User.class, document);
+    }
+
+    private String collectionName() {
+        return operations.getCollectionName(User.class);
+    }
+
+    private List<DBRef> roleRefs(Collection<String> roleIds) {
+        return roleIds.stream().map(this::roleRef).collect(Collectors.toList());
+    }
+
+    private DBRef roleRef(String roleId) {
+        return new DBRef(operations.getCollectionName(Role.class), roleId);
+    }
+}
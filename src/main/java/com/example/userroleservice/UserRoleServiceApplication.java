@@ -3,6 +3,8 @@ package com.example.userroleservice;
 import static java.lang.String.format;
 import static org.springframework.web.reactive.function.server.RequestPredicates.DELETE;
 import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+import static org.springframework.web.reactive.function.server.RequestPredicates.PATCH;
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
 import static org.springframework.web.reactive.function.server.RequestPredicates.PUT;
 import static org.springframework.web.reactive.function.server.RequestPredicates.accept;
 import static org.springframework.web.reactive.function.server.RequestPredicates.contentType;
@@ -15,65 +17,146 @@ import static org.springframework.web.reactive.function.server.ServerResponse.ok
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-import org.springframework.boot.CommandLineRunner;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.autoconfigure.mongo.MongoProperties;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
 import org.springframework.data.mongodb.core.mapping.DBRef;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2SmileDecoder;
+import org.springframework.http.codec.json.Jackson2SmileEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.stereotype.Service;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.reactive.CorsWebFilter;
 import org.springframework.web.cors.reactive.UrlBasedCorsConfigurationSource;
+import org.springframework.web.reactive.function.server.HandlerFunction;
 import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.util.UriComponentsBuilder;
 import org.springframework.web.util.pattern.PathPatternParser;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.reactivestreams.client.MongoClient;
+
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 @SpringBootApplication
 public class UserRoleServiceApplication {
 
     public static final String LOCATION_API_USER = "http://localhost:8080/api/user";
     public static final String LOCATION_API_ROLE = "http://localhost:8080/api/role";
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final MediaType APPLICATION_NDJSON = MediaType.valueOf("application/x-ndjson");
+    public static final List<MediaType> STREAMING_MEDIA_TYPES =
+            Arrays.asList(APPLICATION_NDJSON, MediaType.APPLICATION_STREAM_JSON, MediaType.TEXT_EVENT_STREAM);
+    public static final MediaType APPLICATION_SMILE = MediaType.valueOf("application/x-jackson-smile");
+    public static final MediaType APPLICATION_CBOR = MediaType.valueOf("application/cbor");
+    // Request bodies may be JSON or, from internal callers, binary JSON
+    private static final MediaType[] BODY_MEDIA_TYPES = {MediaType.APPLICATION_JSON, APPLICATION_SMILE, APPLICATION_CBOR};
 
     public static void main(String[] args) {
 		SpringApplication.run(UserRoleServiceApplication.class, args);
 	}
 
+    // Routes lists these routes for the metrics and admission control filters
     @Bean
-    RouterFunction<?> routes(RoleService roleService, UserService userService) {
+    RouterFunction<?> routes(RoleService roleService, UserService userService, ChangeLog changeLog, ObjectMapper objectMapper) {
         return nest(path("/api/user"),
-                    route(GET("/{id}"),
-                            request -> userService.findById(request.pathVariable("id"))
-                                .flatMap(u -> ok().body(Mono.just(u), User.class))
-                                .switchIfEmpty(ServerResponse.notFound().build()))
-                    .andRoute(method(HttpMethod.GET),
-                            request -> ok().body(userService.findAll(), User.class))
-                    .andRoute(method(HttpMethod.POST).and(contentType(MediaType.APPLICATION_JSON)),
-                            request -> userService.addNewUser(request.bodyToMono(User.class))
-                                    .flatMap(user -> created(location(user)).body(Mono.just(user), User.class))
+                    route(GET("/{id}"), withFields(Fields.USER,
+                            (request, fields) -> userService.findById(request.pathVariable("id"), fields)
+                                .flatMap(u -> conditional(request, u, ConditionalRequests.etag(u), ConditionalRequests.lastModified(u), User.class, fields))
+                                .switchIfEmpty(ServerResponse.notFound().build())))
+                    .andRoute(GET("/{id}/has-role/{roleId}"),
+                            request -> userService.hasRole(request.pathVariable("id"), request.pathVariable("roleId"))
+                                    .flatMap(hasRole -> ok().body(Mono.just(new RoleCheck(
+                                            request.pathVariable("id"), request.pathVariable("roleId"), hasRole)), RoleCheck.class))
                                     .switchIfEmpty(ServerResponse.notFound().build()))
-                    .andRoute(PUT("/{id}").and(contentType(MediaType.APPLICATION_JSON)),
-                            request -> userService.updateUser(request.bodyToMono(User.class))
-                                    .flatMap(u -> ok().body(Mono.just(u), User.class))
+                    .andRoute(POST("/_has-role"),
+                            request -> ok().body(userService.hasRoles(request.bodyToFlux(RoleCheck.class)), RoleCheck.class))
+                    .andRoute(POST("/_mget"), withFields(Fields.USER,
+                            (request, fields) -> multiGet(request, ids -> userService.findAllById(ids, fields), User::getUserId, fields)))
+                    .andRoute(POST("/_bulk"),
+                            request -> bulk(request, userService.saveAll(request.bodyToFlux(User.class)), objectMapper))
+                    .andRoute(method(HttpMethod.GET).and(UserRoleServiceApplication::acceptsStreaming), withFields(Fields.USER,
+                            (request, fields) -> export(request, userService.findAll(fields), User.class, fields, objectMapper)))
+                    .andRoute(method(HttpMethod.GET), withFields(Fields.USER,
+                            (request, fields) -> page(request, (after, limit) -> userService.findPage(after, limit, fields),
+                                    User::getUserId, ConditionalRequests::etag, LOCATION_API_USER, User.class, fields)))
+                    .andRoute(method(HttpMethod.POST).and(contentType(BODY_MEDIA_TYPES)),
+                            request -> userService.addNewUser(request.bodyToMono(User.class))
+                                    .flatMap(user -> withValidators(created(location(user)), ConditionalRequests.etag(user), ConditionalRequests.lastModified(user))
+                                            .body(Mono.just(user), User.class))
+                                    .switchIfEmpty(ServerResponse.notFound().build())
+                                    .onErrorResume(DuplicateKeyException.class, e -> ServerResponse.status(HttpStatus.CONFLICT).build()))
+                    .andRoute(PUT("/{id}").and(contentType(BODY_MEDIA_TYPES)),
+                            request -> userService.updateUser(request.bodyToMono(User.class), ConditionalRequests.ifMatchVersion(request))
+                                    .flatMap(u -> withValidators(ok(), ConditionalRequests.etag(u), ConditionalRequests.lastModified(u))
+                                            .body(Mono.just(u), User.class))
+                                    .switchIfEmpty(ServerResponse.notFound().build())
+                                    .onErrorResume(OptimisticLockingFailureException.class,
+                                            e -> ServerResponse.status(HttpStatus.PRECONDITION_FAILED).build()))
+                    .andRoute(PATCH("/{id}").and(contentType(BODY_MEDIA_TYPES)),
+                            request -> userService.patchUser(request.pathVariable("id"), request.bodyToMono(UserPatch.class))
+                                    .flatMap(u -> withValidators(ok(), ConditionalRequests.etag(u), ConditionalRequests.lastModified(u))
+                                            .body(Mono.just(u), User.class))
                                     .switchIfEmpty(ServerResponse.notFound().build()))
                     .andRoute(DELETE("/{id}"),
                             request -> userService.deleteById(request.pathVariable("id"))
@@ -81,40 +164,279 @@ public class UserRoleServiceApplication {
                             .switchIfEmpty(ok().build())
                     ))
                 .andNest(path("/api/role"),
-                    route(GET("/{id}"),
-                            request -> roleService.findById(request.pathVariable("id"))
-                                    .flatMap(role -> ok().body(Mono.just(role), Role.class))
-                                    .switchIfEmpty(ServerResponse.notFound().build()))
-                    .andRoute(method(HttpMethod.GET),
-                            request -> ok().body(roleService.findAll(), Role.class))
-                    .andRoute(method(HttpMethod.POST).and(accept(MediaType.APPLICATION_JSON)),
+                    route(GET("/{id}/users").and(UserRoleServiceApplication::acceptsStreaming), withFields(Fields.USER,
+                            (request, fields) -> export(request, userService.findByRoleId(request.pathVariable("id"), null, 0, fields),
+                                    User.class, fields, objectMapper)))
+                    .andRoute(GET("/{id}/users"), withFields(Fields.USER,
+                            (request, fields) -> page(request,
+                                    (after, limit) -> userService.findByRoleId(request.pathVariable("id"), after, limit, fields),
+                                    User::getUserId,
+                                    ConditionalRequests::etag,
+                                    format("%s/%s/users", LOCATION_API_ROLE, request.pathVariable("id")),
+                                    User.class,
+                                    fields)))
+                    .andRoute(GET("/{id}"), withFields(Fields.ROLE,
+                            (request, fields) -> roleService.findById(request.pathVariable("id"))
+                                    .flatMap(role -> conditional(request, role, ConditionalRequests.etag(role), role.getLastModified(), Role.class, fields))
+                                    .switchIfEmpty(ServerResponse.notFound().build())))
+                    .andRoute(POST("/_bulk"),
+                            request -> bulk(request, roleService.saveAll(request.bodyToFlux(Role.class)), objectMapper))
+                    .andRoute(POST("/_mget"), withFields(Fields.ROLE,
+                            (request, fields) -> multiGet(request, roleService::findAllById, Role::getId, fields)))
+                    .andRoute(method(HttpMethod.GET).and(UserRoleServiceApplication::acceptsStreaming), withFields(Fields.ROLE,
+                            (request, fields) -> export(request, roleService.findAll(), Role.class, fields, objectMapper)))
+                    .andRoute(method(HttpMethod.GET), withFields(Fields.ROLE,
+                            (request, fields) -> page(request, roleService::findPage, Role::getId, ConditionalRequests::etag,
+                                    LOCATION_API_ROLE, Role.class, fields)))
+                    .andRoute(method(HttpMethod.POST).and(accept(BODY_MEDIA_TYPES)),
                             request -> roleService.addNewRole(request.bodyToMono(Role.class))
-                                    .flatMap(role -> created(location(role)).body(Mono.just(role), Role.class))
+                                    .flatMap(role -> withValidators(created(location(role)), ConditionalRequests.etag(role), role.getLastModified())
+                                            .body(Mono.just(role), Role.class))
                                     .switchIfEmpty(ServerResponse.badRequest().build()))
                     .andRoute(DELETE("/{id}"),
                             request -> roleService.deleteById(request.pathVariable("id"))
                                     .flatMap(role -> ok().body(Mono.just(role), Role.class))
                                     .switchIfEmpty(ok().build()))
-                    .andRoute(PUT("/{id}").and(contentType(MediaType.APPLICATION_JSON)),
-                            request -> roleService.updateRole(request.bodyToMono(Role.class))
-                                    .flatMap(role -> ok().body(Mono.just(role), Role.class))
-                                    .switchIfEmpty(ServerResponse.notFound().build())));
+                    .andRoute(PUT("/{id}").and(contentType(BODY_MEDIA_TYPES)),
+                            request -> roleService.updateRole(request.bodyToMono(Role.class), ConditionalRequests.ifMatchVersion(request))
+                                    .flatMap(role -> withValidators(ok(), ConditionalRequests.etag(role), role.getLastModified())
+                                            .body(Mono.just(role), Role.class))
+                                    .switchIfEmpty(ServerResponse.notFound().build())
+                                    .onErrorResume(OptimisticLockingFailureException.class,
+                                            e -> ServerResponse.status(HttpStatus.PRECONDITION_FAILED).build())))
+                .andNest(path("/api/changes"),
+                    route(method(HttpMethod.GET).and(UserRoleServiceApplication::acceptsStreaming),
+                            request -> hasValidSince(request)
+                                    ? export(request, changeLog.follow(since(request)), Change.class, objectMapper)
+                                    : ServerResponse.badRequest().build())
+                    .andRoute(method(HttpMethod.GET),
+                            request -> changes(request, changeLog)));
+    }
+
+    // Pages are tagged by the tags of their items, so a poll of an unchanged page is answered with 304
+    private <T> Mono<ServerResponse> page(ServerRequest request, BiFunction<String, Integer, Flux<T>> finder,
+                                          Function<T, String> cursor, Function<T, String> etagOf,
+                                          String location, Class<T> type, Fields fields) {
+        Integer pageSize = pageSize(request);
+        if (pageSize == null) {
+            return ServerResponse.badRequest().build();
+        }
+        return finder.apply(request.queryParam("after").orElse(null), pageSize)
+                .collectList()
+                .flatMap(items -> {
+                    String etag = ConditionalRequests.etag(items, etagOf);
+                    if (ConditionalRequests.isNotModified(request, etag, null)) {
+                        return ServerResponse.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+                    }
+                    ServerResponse.BodyBuilder response = ok().eTag(etag);
+                    if (items.size() == pageSize) {
+                        String next = cursor.apply(items.get(items.size() - 1));
+                        UriComponentsBuilder link = UriComponentsBuilder.fromHttpUrl(location)
+                                .queryParam("after", next)
+                                .queryParam("limit", pageSize);
+                        request.queryParam("fields").ifPresent(value -> link.queryParam("fields", value));
+                        response.header(NEXT_CURSOR_HEADER, next)
+                                .header(HttpHeaders.LINK, format("<%s>; rel=\"next\"", link.build().encode().toUriString()));
+                    }
+                    return fields.isAll()
+                            ? response.body(Flux.fromIterable(items), type)
+                            : response.body(Flux.fromIterable(items).map(fields::project), Object.class);
+                });
+    }
+
+    // The changes after the since token; the response names the token to continue from. A token that
+    // has fallen out of the change log answers 410, the client then has to reload everything.
+    private Mono<ServerResponse> changes(ServerRequest request, ChangeLog changeLog) {
+        Integer pageSize = pageSize(request);
+        if (!hasValidSince(request) || pageSize == null) {
+            return ServerResponse.badRequest().build();
+        }
+        String token = since(request);
+        return (token == null ? Mono.just(true) : changeLog.isRetained(token))
+                .flatMap(retained -> !retained
+                        ? ServerResponse.status(HttpStatus.GONE).build()
+                        : changeLog.findSince(token, pageSize)
+                                .collectList()
+                                .flatMap(changes -> {
+                                    String next = changes.isEmpty() ? token : changes.get(changes.size() - 1).getToken();
+                                    ServerResponse.BodyBuilder response = ok();
+                                    if (next != null) {
+                                        response.header(NEXT_CURSOR_HEADER, next);
+                                    }
+                                    return response.body(Flux.fromIterable(changes), Change.class);
+                                }));
+    }
+
+    private static boolean hasValidSince(ServerRequest request) {
+        return request.queryParam("since").map(ObjectId::isValid).orElse(true);
     }
 
-    private URI location(User user) {
+    // Tokens compare as lower case hex strings
+    private static String since(ServerRequest request) {
+        return request.queryParam("since").map(token -> new ObjectId(token).toHexString()).orElse(null);
+    }
+
+    // The requested limit capped at MAX_PAGE_SIZE, or null when it isn't a positive number
+    private static Integer pageSize(ServerRequest request) {
+        int limit;
+        try {
+            limit = request.queryParam("limit").map(Integer::parseInt).orElse(MAX_PAGE_SIZE);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return limit < 1 ? null : Math.min(limit, MAX_PAGE_SIZE);
+    }
+
+    // The body is only serialized when the client's copy is stale
+    private <T> Mono<ServerResponse> conditional(ServerRequest request, T body, String etag, Instant lastModified,
+                                                 Class<T> type, Fields fields) {
+        if (ConditionalRequests.isNotModified(request, etag, lastModified)) {
+            return withValidators(ServerResponse.status(HttpStatus.NOT_MODIFIED), etag, lastModified).build();
+        }
+        ServerResponse.BodyBuilder response = withValidators(ok(), etag, lastModified);
+        return fields.isAll()
+                ? response.body(Mono.just(body), type)
+                : response.body(Mono.just(fields.project(body)), Object.class);
+    }
+
+    // Answers 400 to a request for an unknown field
+    private static HandlerFunction<ServerResponse> withFields(Set<String> known,
+                                                              BiFunction<ServerRequest, Fields, Mono<ServerResponse>> handler) {
+        return request -> {
+            Fields fields;
+            try {
+                fields = Fields.parse(request.queryParam("fields").orElse(null), known);
+            } catch (IllegalArgumentException e) {
+                return ServerResponse.badRequest().build();
+            }
+            return handler.apply(request, fields);
+        };
+    }
+
+    private static ServerResponse.BodyBuilder withValidators(ServerResponse.BodyBuilder response, String etag,
+                                                             Instant lastModified) {
+        response.eTag(etag);
+        if (lastModified != null) {
+            response.lastModified(ZonedDateTime.ofInstant(lastModified, ZoneOffset.UTC));
+        }
+        return response;
+    }
+
+    private <T> Mono<ServerResponse> export(ServerRequest request, Flux<T> items, Class<T> type, Fields fields,
+                                            ObjectMapper objectMapper) {
+        return fields.isAll()
+                ? export(request, items, type, objectMapper)
+                : export(request, items.map(fields::project), Object.class, objectMapper);
+    }
+
+    private <T> Mono<ServerResponse> export(ServerRequest request, Flux<T> items, Class<T> type, ObjectMapper objectMapper) {
+        MediaType mediaType = streamingMediaType(request).orElse(MediaType.APPLICATION_STREAM_JSON);
+        if (APPLICATION_NDJSON.equals(mediaType)) {
+            return ok().contentType(APPLICATION_NDJSON)
+                    .body(items.map(item -> toJsonLine(item, objectMapper)), String.class);
+        }
+        return ok().contentType(mediaType).body(items, type);
+    }
+
+    // The items of the requested ids in request order, each marked found or not; at most MAX_PAGE_SIZE ids
+    private <T> Mono<ServerResponse> multiGet(ServerRequest request, Function<Collection<String>, Flux<T>> finder,
+                                              Function<T, String> idOf, Fields fields) {
+        return request.bodyToMono(MultiGet.class)
+                .flatMap(get -> {
+                    List<String> ids = get.getIds() == null ? Collections.emptyList() : get.getIds();
+                    if (ids.size() > MAX_PAGE_SIZE || ids.contains(null)) {
+                        return ServerResponse.badRequest().build();
+                    }
+                    return finder.apply(new LinkedHashSet<>(ids))
+                            .collectMap(idOf)
+                            .flatMap(found -> ok().body(Flux.fromIterable(ids)
+                                    .map(id -> new MultiGetItem<>(id, found.containsKey(id),
+                                            found.containsKey(id) ? fields.project(found.get(id)) : null)), MultiGetItem.class));
+                })
+                .switchIfEmpty(ServerResponse.badRequest().build());
+    }
+
+    private Mono<ServerResponse> bulk(ServerRequest request, Flux<BulkItemResult> results, ObjectMapper objectMapper) {
+        if (acceptsStreaming(request)) {
+            return export(request, results, BulkItemResult.class, objectMapper);
+        }
+        return ok().body(results, BulkItemResult.class);
+    }
+
+    private static String toJsonLine(Object item, ObjectMapper objectMapper) {
+        try {
+            return objectMapper.writeValueAsString(item) + "\n";
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Can't encode " + item, e);
+        }
+    }
+
+    private static boolean acceptsStreaming(ServerRequest request) {
+        return streamingMediaType(request).isPresent();
+    }
+
+    private static Optional<MediaType> streamingMediaType(ServerRequest request) {
+        return Routes.streamingMediaType(request.headers().accept());
+    }
+
+    URI location(User user) {
         try {
             return new URI(format("%s/%s", LOCATION_API_USER, user.getUserId()));
         } catch (URISyntaxException e) {
             throw new IllegalStateException("Can't create location for user:" + user, e);
         }
     }
-    private URI location(Role role) {
+    URI location(Role role) {
         try {
             return new URI(format("%s/%s", LOCATION_API_ROLE, role.getId()));
         } catch (URISyntaxException e) {
             throw new IllegalStateException("Can't create location for role:" + role, e);
         }
     }
+    @Bean
+    CodecCustomizer ndjsonCodecCustomizer(ObjectMapper objectMapper) {
+        return configurer -> configurer.customCodecs().decoder(new Jackson2JsonDecoder(objectMapper, APPLICATION_NDJSON));
+    }
+
+    // Registered after the JSON codecs, so JSON stays the default for clients that accept anything
+    @Bean
+    CodecCustomizer binaryCodecCustomizer(ApplicationContext context, List<Jackson2ObjectMapperBuilderCustomizer> customizers) {
+        ObjectMapper smileMapper = binaryMapper(Jackson2ObjectMapperBuilder.smile(), context, customizers);
+        ObjectMapper cborMapper = binaryMapper(Jackson2ObjectMapperBuilder.cbor(), context, customizers);
+        return configurer -> {
+            configurer.customCodecs().encoder(new Jackson2SmileEncoder(smileMapper));
+            configurer.customCodecs().decoder(new Jackson2SmileDecoder(smileMapper));
+            configurer.customCodecs().encoder(new Jackson2CborEncoder(cborMapper));
+            configurer.customCodecs().decoder(new Jackson2CborDecoder(cborMapper));
+        };
+    }
+
+    // Configured like the JSON mapper from a builder of its own, as the shared builder must keep building JSON mappers
+    private static ObjectMapper binaryMapper(Jackson2ObjectMapperBuilder builder, ApplicationContext context,
+                                             List<Jackson2ObjectMapperBuilderCustomizer> customizers) {
+        builder.applicationContext(context);
+        customizers.forEach(customizer -> customizer.customize(builder));
+        return builder.build();
+    }
+
+    @Bean
+    MongoClientSettingsBuilderCustomizer mongoCommandMetrics(MeterRegistry registry) {
+        return builder -> builder.addCommandListener(new MongoCommandMetrics(registry));
+    }
+
+    // In place of Boot's factory, so the commands a request sends are counted for it
+    @Bean
+    SimpleReactiveMongoDatabaseFactory reactiveMongoDatabaseFactory(MongoClient mongoClient, MongoProperties properties) {
+        return new RequestCountingMongoDatabaseFactory(mongoClient, properties.getMongoClientDatabase());
+    }
+
+    @Bean
+    MongoCustomConversions mongoCustomConversions(@Value("${storage.embed-roles:false}") boolean embedRoles) {
+        return new MongoCustomConversions(embedRoles
+                ? Arrays.asList(new UserReadConverter(), new UserWriteConverter())
+                : Arrays.asList(new UserReadConverter()));
+    }
+
     @Bean
     CorsWebFilter corsFilter() {
         CorsConfiguration config = new CorsConfiguration();
@@ -129,134 +451,485 @@ public class UserRoleServiceApplication {
 
         return new CorsWebFilter(source);
     }
-    @Bean
-	CommandLineRunner demo(UserRepository userRepository, RoleRepository roleRepository) {
-
-        return args -> {
-            userRepository
-                    .deleteAll()
-                    .subscribe(null, null,
-                            () -> Stream.of("R1:1-1-1-1-1,R2:1-1-1-1-2,R3:1-1-1-1-3".split(","))
-                                    .map(this::createRole)
-                                    .forEach(role -> roleRepository.save(role).subscribe(System.out::println)));
-            roleRepository
-                    .deleteAll()
-                    .subscribe(null, null,
-                            () -> Stream.of("user1:Karl Benknäckare:1-1-1-1-1,user2:Britta Andehaag,user3:Walter Iskugel".split(","))
-                                    .map(this::createUser)
-                                    .forEach(user -> userRepository.save(user).subscribe(System.out::println))
-                    );
-        };
+}
+
+@Service
+class UserService {
+    // Streams resolve roles per batch of users so they are never held whole; pages resolve theirs at once
+    static final int ROLE_JOIN_BATCH_SIZE = 256;
+    private static final int EMBED_ATTEMPTS = 3;
+
+    // The fields a role check reads
+    private static final Fields ROLES = Fields.parse("roles", Fields.USER);
+
+    private final UserRepository repository;
+    private final RoleService roleService;
+    private final RoleMembershipIndex membership;
+    private final ChangeLog changes;
+    private final int bulkBatchSize;
+    private final CoalescingLoader<User> loader;
+    public UserService(UserRepository repository, RoleService roleService, RoleMembershipIndex membership,
+                       ChangeLog changes, @Value("${bulk.batch-size:1000}") int bulkBatchSize) {
+        this.repository = repository;
+        this.roleService = roleService;
+        this.membership = membership;
+        this.changes = changes;
+        this.bulkBatchSize = bulkBatchSize;
+        this.loader = new CoalescingLoader<>(ids -> withRoles(repository.findAllById(ids)), User::getUserId);
+    }
+
+    public Flux<User> findAll() {
+        return withRoles(repository.findAll());
     }
 
-    User createUser(String s) {
-        String[] ss = s.split(":");
+    public Flux<User> findAll(Fields fields) {
+        return fields.isAll() ? findAll() : withRoles(repository.findPage(null, 0, fields), fields);
+    }
+
+    public Flux<User> findPage(String after, int limit) {
+        Pageable page = PageRequest.of(0, limit, Sort.by("userId"));
+        return withRolesOfPage(after == null
+                ? repository.findAllBy(page)
+                : repository.findByUserIdGreaterThan(after, page));
+    }
 
-        ArrayList<Role> roles = new ArrayList<>();
-        if (ss.length > 2) {
-            roles.add(Role.builder().id(ss[2]).build());
+    public Flux<User> findPage(String after, int limit, Fields fields) {
+        return fields.isAll() ? findPage(after, limit) : withRolesOfPage(repository.findPage(after, limit, fields), fields);
+    }
+
+    // A limit of 0 streams all the role's users
+    public Flux<User> findByRoleId(String roleId, String after, int limit, Fields fields) {
+        Flux<User> users = repository.findByRoleId(roleId, after, limit, fields);
+        return limit == 0 ? withRoles(users, fields) : withRolesOfPage(users, fields);
+    }
+
+    // One query for the users and one role resolution pass shared by all of them; missing users are left out
+    public Flux<User> findAllById(Collection<String> ids, Fields fields) {
+        Flux<User> users = fields.isAll() ? repository.findAllById(ids) : repository.findAllById(ids, fields);
+        if (!fields.needsRoleDetails()) {
+            return users;
         }
+        return users.collectList().flatMapMany(this::joinRoles);
+    }
 
-        return User.builder()
-                .userId(ss[0])
-                .name(ss[1])
-                .roles(roles)
-                .build();
+    // Concurrent lookups share their database calls and their resolved user, which callers must not modify
+    public  Mono<User> findById(String id) {
+        return loader.load(id);
     }
 
-    Role createRole(String s) {
-        String[] ss = s.split(":");
-        return Role.builder()
-                .rolename(ss[0])
-                .id(ss[1])
-                .description("Beskrivning av roll " + ss[0])
-                .build();
+    // Only a lookup of all fields is shared with concurrent ones
+    public Mono<User> findById(String id, Fields fields) {
+        return fields.isAll() ? findById(id) : findAllById(Collections.singletonList(id), fields).singleOrEmpty();
     }
 
-}
+    // Answered from the membership index; only a user not indexed yet costs a database call. User
+    // writes evict the user from the index as soon as they have an outcome, before answering.
+    public Mono<Boolean> hasRole(String userId, String roleId) {
+        return Mono.defer(() -> {
+            Boolean indexed = membership.hasRole(userId, roleId);
+            return indexed != null
+                    ? Mono.just(indexed)
+                    : indexed(Collections.singletonList(userId)).next().map(user -> holds(user, roleId));
+        });
+    }
 
-@Service
-class UserService {
-    private final UserRepository repository;
-    public UserService(UserRepository repository) {
-        this.repository = repository;
+    // The users of a batch of checks not indexed yet are read with one user query and one role resolution pass
+    public Flux<RoleCheck> hasRoles(Flux<RoleCheck> checks) {
+        return checks.buffer(ROLE_JOIN_BATCH_SIZE)
+                .concatMap(batch -> {
+                    List<Boolean> indexed = batch.stream()
+                            .map(check -> check.getUserId() == null ? Boolean.FALSE : membership.hasRole(check.getUserId(), check.getRoleId()))
+                            .collect(Collectors.toList());
+                    Set<String> missing = new LinkedHashSet<>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (indexed.get(i) == null) {
+                            missing.add(batch.get(i).getUserId());
+                        }
+                    }
+                    return indexed(missing)
+                            .collectMap(User::getUserId)
+                            .flatMapIterable(users -> {
+                                List<RoleCheck> answers = new ArrayList<>(batch.size());
+                                for (int i = 0; i < batch.size(); i++) {
+                                    RoleCheck check = batch.get(i);
+                                    Boolean hasRole = indexed.get(i);
+                                    answers.add(new RoleCheck(check.getUserId(), check.getRoleId(),
+                                            hasRole != null ? hasRole : holds(users.get(check.getUserId()), check.getRoleId())));
+                                }
+                                return answers;
+                            });
+                });
     }
 
-    public Flux<User> findAll() {
-        return repository.findAll().map(User::copy);
+    // Reads users to index, leaving out of the index those written while they were read
+    private Flux<User> indexed(Collection<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Flux.empty();
+        }
+        return Flux.defer(() -> {
+            Map<String, Long> stamps = userIds.stream().collect(Collectors.toMap(id -> id, membership::stamp));
+            return findAllById(userIds, ROLES).doOnNext(user -> membership.fill(user, stamps.get(user.getUserId())));
+        });
     }
 
-    public  Mono<User> findById(String id) {
-        return repository.findById(id).map(User::copy);
+    // Resolved users no longer hold references to deleted roles
+    private static boolean holds(User user, String roleId) {
+        return user != null && user.getRoles().stream().anyMatch(role -> role != null && Objects.equals(role.getId(), roleId));
     }
 
     public Mono<User> deleteById(String id) {
-        return repository.findById(id)
-                .flatMap(oldUser -> repository
-                        .deleteById(id)
-                        .then(Mono.just(oldUser).map(User::copy)));
+        return withRoles(repository.findAndRemoveById(id)
+                .doOnSuccessOrError((removed, error) -> membership.invalidate(id))
+                .flatMap(user -> logged(user, Change.Operation.DELETE)))
+                .singleOrEmpty();
     }
 
-    public Mono<User> updateUser(Mono<User> user) {
-        return user.flatMap(u -> repository
-                .findById(u.getUserId())
-                .flatMap(u2 -> repository.save(u)))
-                .map(User::copy);
+    public Mono<User> updateUser(Mono<User> user, Long expectedVersion) {
+        return withRoles(user.flatMap(u -> withRoleSnapshots(Collections.singletonList(u))
+                        .then(Mono.defer(() -> repository.findAndReplace(u, expectedVersion)
+                                .doOnSuccessOrError((replaced, error) -> membership.invalidate(u.getUserId())))))
+                .flatMap(u -> logged(u, Change.Operation.UPDATE)))
+                .singleOrEmpty();
     }
 
+    public Mono<User> patchUser(String id, Mono<UserPatch> patch) {
+        return withRoles(patch.flatMap(p -> rolesToAdd(p.getAddRoles())
+                        .flatMap(add -> repository.findAndUpdateRoles(id, add, p.getRemoveRoles())
+                                .doOnSuccessOrError((patched, error) -> membership.invalidate(id)))
+                        .flatMap(u -> p.isEmpty() ? Mono.just(u) : logged(u, Change.Operation.UPDATE))))
+                .singleOrEmpty();
+    }
+
+    // Creates the user, failing with a DuplicateKeyException when it already exists
     public Mono<User> addNewUser(Mono<User> user) {
-        return repository.saveAll(user)
-                .map(User::copy)
+        return repository.saveAll(user.doOnNext(u -> u.setLastModified(Versions.now()))
+                        .flatMap(u -> withRoleSnapshots(Collections.singletonList(u)).thenReturn(u)))
+                .doOnNext(u -> membership.invalidate(u.getUserId()))
+                .flatMap(u -> logged(u, Change.Operation.CREATE))
                 .singleOrEmpty();
     }
+
+    public Flux<BulkItemResult> saveAll(Flux<User> users) {
+        return saveAll(users, 1);
+    }
+
+    public Flux<BulkItemResult> saveAll(Flux<User> users, int parallelism) {
+        return BulkWrites.inBatches(users, bulkBatchSize, User::getUserId, this::upsertAll, parallelism);
+    }
+
+    private Flux<BulkItemResult> upsertAll(List<User> users) {
+        return withRoleSnapshots(users)
+                .thenMany(Flux.defer(() -> repository.upsertAll(users)))
+                .doOnTerminate(() -> users.stream()
+                        .map(User::getUserId)
+                        .filter(Objects::nonNull)
+                        .forEach(membership::invalidate))
+                .collectList()
+                .flatMapMany(results -> changes.record(ChangeLog.USER, results).thenMany(Flux.fromIterable(results)));
+    }
+
+    // Users written before roles were embedded hold references until they are written again; Bootstrap
+    // replaces them with snapshots so role queries, deletes and fan-outs find those users too
+    public Mono<Long> embedRoleReferences() {
+        return repository.findWithRoleReferences()
+                .buffer(ROLE_JOIN_BATCH_SIZE)
+                .concatMap(users -> withRoleSnapshots(users).thenMany(Flux.fromIterable(users)))
+                .concatMap(user -> embedRoleReferences(user, EMBED_ATTEMPTS))
+                .flatMap(user -> logged(user, Change.Operation.UPDATE))
+                .count();
+    }
+
+    // Only replaces the version read; after a concurrent write the user is read and joined again
+    private Mono<User> embedRoleReferences(User user, int attempts) {
+        return repository.findAndReplace(user, user.getVersion() == null ? 0L : user.getVersion())
+                .doOnSuccessOrError((replaced, error) -> membership.invalidate(user.getUserId()))
+                .onErrorResume(OptimisticLockingFailureException.class, conflict -> attempts <= 1
+                        ? Mono.error(conflict)
+                        : repository.findById(user.getUserId())
+                                .flatMap(current -> withRoleSnapshots(Collections.singletonList(current))
+                                        .then(Mono.defer(() -> embedRoleReferences(current, attempts - 1)))));
+    }
+
+    private Mono<User> logged(User user, Change.Operation operation) {
+        return changes.record(ChangeLog.USER, user.getUserId(), operation, user.getVersion()).thenReturn(user);
+    }
+
+    // Users embedding their roles are written with the current roles in place of the references, which
+    // drops references to missing roles. Only users about to be written are given the roles, and
+    // writes don't modify the roles they are given.
+    private Mono<Void> withRoleSnapshots(List<User> users) {
+        if (!repository.embedsRoles()) {
+            return Mono.empty();
+        }
+        List<User> holding = users.stream().filter(user -> user.getRoles() != null).collect(Collectors.toList());
+        return rolesOf(holding)
+                .doOnNext(rolesById -> holding.forEach(user -> user.setRoles(user.resolvedRoles(rolesById))))
+                .then();
+    }
+
+    private Mono<List<Role>> rolesToAdd(List<String> roleIds) {
+        if (roleIds == null || roleIds.isEmpty()) {
+            return Mono.just(Collections.emptyList());
+        }
+        if (repository.embedsRoles()) {
+            return roleService.findAllById(new LinkedHashSet<>(roleIds)).collectList();
+        }
+        return Mono.just(roleIds.stream()
+                .distinct()
+                .map(roleId -> Role.builder().id(roleId).build())
+                .collect(Collectors.toList()));
+    }
+
+    // Users are read with id-only role references (see UserReadConverter); resolve them from
+    // the role cache, with at most one role query per batch of users for the misses. The resolved
+    // users are new users sharing the cached roles, which are only read from here on.
+    // Users embedding their roles are read resolved already, apart from any references left.
+    private Flux<User> withRoles(Publisher<User> users) {
+        return Flux.from(users)
+                .buffer(ROLE_JOIN_BATCH_SIZE)
+                .concatMap(this::joinRoles);
+    }
+
+    // A page holds at most MAX_PAGE_SIZE users, so it is resolved in one pass with at most one role query
+    private Flux<User> withRolesOfPage(Publisher<User> page) {
+        return Flux.from(page)
+                .collectList()
+                .flatMapMany(this::joinRoles);
+    }
+
+    private Flux<User> joinRoles(List<User> users) {
+        return repository.embedsRoles() ? joinRoleReferences(users) : joinResolvedRoles(users);
+    }
+
+    // References a user embedding its roles still holds are read as roles with neither a name nor a
+    // version, and resolved like the references of users that don't embed their roles
+    private Flux<User> joinRoleReferences(List<User> users) {
+        List<User> referencing = users.stream()
+                .filter(UserService::holdsRoleReferences)
+                .collect(Collectors.toList());
+        if (referencing.isEmpty()) {
+            return Flux.fromIterable(users);
+        }
+        return rolesOf(referencing)
+                .flatMapIterable(rolesById -> users.stream()
+                        .map(user -> holdsRoleReferences(user) ? user.withResolvedRoles(rolesById) : user)
+                        .collect(Collectors.toList()));
+    }
+
+    private static boolean holdsRoleReferences(User user) {
+        return user.getRoles().stream()
+                .anyMatch(role -> role != null && role.getRolename() == null && role.getVersion() == null);
+    }
+
+    // Without role details the references are answered as they are, which may include a role deleted
+    // while its users are being detached from it
+    private Flux<User> withRoles(Publisher<User> users, Fields fields) {
+        return fields.needsRoleDetails() ? withRoles(users) : Flux.from(users);
+    }
+
+    private Flux<User> withRolesOfPage(Publisher<User> page, Fields fields) {
+        return fields.needsRoleDetails() ? withRolesOfPage(page) : Flux.from(page);
+    }
+
+    private Flux<User> joinResolvedRoles(List<User> users) {
+        return rolesOf(users)
+                .flatMapIterable(rolesById -> users.stream()
+                        .map(user -> user.withResolvedRoles(rolesById))
+                        .collect(Collectors.toList()));
+    }
+
+    // The roles the users hold by id, with one role query for the ones not cached
+    private Mono<Map<String, Role>> rolesOf(List<User> users) {
+        Set<String> roleIds = users.stream()
+                .flatMap(user -> user.getRoles().stream())
+                .filter(Objects::nonNull)
+                .map(Role::getId)
+                .collect(Collectors.toSet());
+        if (roleIds.isEmpty()) {
+            return Mono.just(Collections.emptyMap());
+        }
+        return roleService.findAllById(roleIds).collectMap(Role::getId);
+    }
 }
 
+@Slf4j
 @Service
 class RoleService {
+    // Fan-outs are retried after 100, 200 and 400 ms; a retry only changes the users not updated yet
+    static final int FAN_OUT_RETRIES = 3;
+    static final Duration FAN_OUT_RETRY_DELAY = Duration.ofMillis(100);
 
     private final RoleRepository repository;
-    public RoleService(RoleRepository repository) {
+    private final UserRepository userRepository;
+    private final RoleCache cache;
+    private final RoleMembershipIndex membership;
+    private final ChangeLog changes;
+    private final int bulkBatchSize;
+    private final Duration fanOutRetryDelay;
+    private final Scheduler fanOutTimer;
+    private final CoalescingLoader<Role> loader;
+    @Autowired
+    public RoleService(RoleRepository repository, UserRepository userRepository, RoleCache cache,
+                       RoleMembershipIndex membership, ChangeLog changes,
+                       @Value("${bulk.batch-size:1000}") int bulkBatchSize) {
+        this(repository, userRepository, cache, membership, changes, bulkBatchSize, FAN_OUT_RETRY_DELAY, Schedulers.parallel());
+    }
+
+    // Fan-out retries wait for the first delay, doubling, on the timer
+    RoleService(RoleRepository repository, UserRepository userRepository, RoleCache cache,
+                RoleMembershipIndex membership, ChangeLog changes, int bulkBatchSize,
+                Duration fanOutRetryDelay, Scheduler fanOutTimer) {
         this.repository = repository;
+        this.userRepository = userRepository;
+        this.cache = cache;
+        this.membership = membership;
+        this.changes = changes;
+        this.bulkBatchSize = bulkBatchSize;
+        this.fanOutRetryDelay = fanOutRetryDelay;
+        this.fanOutTimer = fanOutTimer;
+        this.loader = new CoalescingLoader<>(ids -> repository.findAllById(ids).map(cache::put), Role::getId);
     }
 
     public Flux<Role> findAll() {
-        return repository.findAll().map(Role::copy);
+        return repository.findAll()
+                .map(cache::put);
+    }
+
+    public Flux<Role> findPage(String after, int limit) {
+        Pageable page = PageRequest.of(0, limit, Sort.by("id"));
+        return (after == null ? repository.findAllBy(page) : repository.findByIdGreaterThan(after, page))
+                .map(cache::put);
     }
 
+    // Cached roles are shared by every reader, so callers only read what they are given
     public  Mono<Role> findById(String id) {
-        return repository.findById(id).map(Role::copy);
+        Role cached = cache.get(id);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return loader.load(id);
+    }
+
+    public Flux<Role> findAllById(Collection<String> ids) {
+        List<Role> cached = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            Role role = cache.get(id);
+            if (role != null) {
+                cached.add(role);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Flux.fromIterable(cached);
+        }
+        return Flux.fromIterable(cached)
+                .concatWith(repository.findAllById(missing)
+                        .map(cache::put));
     }
 
     public Mono<Role> deleteById(String id) {
-        return repository.findById(id)
-                .flatMap(oldRole ->
-                        repository.deleteById(id)
-                                .then(Mono.just(oldRole)));
+        return repository.findAndRemoveById(id)
+                .doOnTerminate(() -> {
+                    cache.invalidate(id);
+                    membership.removeRole(id);
+                })
+                .flatMap(oldRole -> (userRepository.embedsRoles()
+                        ? fanOut(() -> userRepository.removeRoleFromAll(id).doOnComplete(() -> membership.removeRole(id)))
+                        : usersLogged(userRepository.removeRoleFromAll(id)).doOnSuccessOrError((detached, error) -> membership.removeRole(id)).then())
+                        .then(logged(oldRole, Change.Operation.DELETE)));
     }
 
-    public Mono<Role> updateRole(Mono<Role> role) {
-        return role.flatMap(r ->
-                repository.findById(r.getId())
-                        .flatMap(r2 -> repository.save(r))
-        );
+    public Mono<Role> updateRole(Mono<Role> role, Long expectedVersion) {
+        return role.flatMap(r -> repository.findAndReplace(r, expectedVersion))
+                .map(cache::put)
+                .flatMap(r -> fanOut(() -> userRepository.updateEmbeddedRoles(Collections.singletonList(r))).thenReturn(r))
+                .flatMap(r -> logged(r, Change.Operation.UPDATE));
     }
 
     public Mono<Role> addNewRole(Mono<Role> role) {
         return repository.saveAll(role.map(this::withRandomUuid))
+                .map(cache::put)
+                .flatMap(r -> logged(r, Change.Operation.CREATE))
                 .singleOrEmpty();
     }
 
+    // Roles without an id get a random one, roles with an id are created or replaced
+    public Flux<BulkItemResult> saveAll(Flux<Role> roles) {
+        return saveAll(roles, 1);
+    }
+
+    public Flux<BulkItemResult> saveAll(Flux<Role> roles, int parallelism) {
+        return BulkWrites.inBatches(roles.map(r -> r.getId() == null ? withRandomUuid(r) : r),
+                bulkBatchSize, Role::getId, this::upsertAll, parallelism);
+    }
+
+    // The written roles don't carry their new versions, so they are dropped from the cache rather than cached
+    private Flux<BulkItemResult> upsertAll(List<Role> roles) {
+        return repository.upsertAll(roles)
+                .doOnNext(result -> cache.invalidate(result.getId()))
+                .collectList()
+                .flatMap(results -> fanOut(() -> repository.findAllById(results.stream()
+                                .filter(result -> result.getStatus() == 200)
+                                .map(BulkItemResult::getId)
+                                .collect(Collectors.toList()))
+                        .collectList()
+                        .flatMapMany(userRepository::updateEmbeddedRoles)).thenReturn(results))
+                .flatMapMany(results -> changes.record(ChangeLog.ROLE, results).thenMany(Flux.fromIterable(results)));
+    }
+
+    // Changes to roles reach the users embedding them in the background, so role writes don't wait for
+    // every holder to be updated; until then a user may still read the previous snapshot. A fan-out
+    // still failing after its retries is logged, and its users keep their snapshots until the next one.
+    private Mono<Void> fanOut(Supplier<Flux<String>> update) {
+        if (userRepository.embedsRoles()) {
+            Mono.defer(() -> usersLogged(update.get()))
+                    .retryWhen(errors -> errors.zipWith(Flux.range(0, FAN_OUT_RETRIES + 1)).concatMap(failure -> {
+                        int retry = failure.getT2();
+                        if (retry == FAN_OUT_RETRIES) {
+                            return Mono.<Long>error(failure.getT1());
+                        }
+                        Duration delay = fanOutRetryDelay.multipliedBy(1L << retry);
+                        log.warn("Role fan-out failed, retrying in {} ms", delay.toMillis(), failure.getT1());
+                        return Mono.delay(delay, fanOutTimer);
+                    }))
+                    .subscribe(modified -> log.debug("Role fan-out updated {} users", modified),
+                            error -> log.error("Role fan-out gave up; users embedding the role keep their snapshots", error));
+        }
+        return Mono.empty();
+    }
+
+    // Logs the users a role write changed a batch at a time, as they are changed, and counts them.
+    // A fan-out retried after a failure has logged the users it changed before it.
+    private Mono<Long> usersLogged(Flux<String> userIds) {
+        return userIds.buffer(bulkBatchSize)
+                .concatMap(ids -> changes.record(ChangeLog.USER, ids, Change.Operation.UPDATE).thenReturn((long) ids.size()))
+                .reduce(0L, Long::sum);
+    }
+
+    private Mono<Role> logged(Role role, Change.Operation operation) {
+        return changes.record(ChangeLog.ROLE, role.getId(), operation, role.getVersion()).thenReturn(role);
+    }
+
     private  Role withRandomUuid(Role role) {
         return Role.builder()
                 .id(UUID.randomUUID().toString())
                 .rolename(role.getRolename())
                 .description(role.getDescription())
+                .lastModified(Versions.now())
                 .build();
     }
 }
 
-interface UserRepository extends ReactiveMongoRepository<User, String>{}
-interface RoleRepository extends ReactiveMongoRepository<Role, String>{}
+interface UserRepository extends ReactiveMongoRepository<User, String>, UserRepositoryCustom {
+    Flux<User> findAllBy(Pageable pageable);
+    Flux<User> findByUserIdGreaterThan(String userId, Pageable pageable);
+}
+interface RoleRepository extends ReactiveMongoRepository<Role, String>, RoleRepositoryCustom {
+    Flux<Role> findAllBy(Pageable pageable);
+    Flux<Role> findByIdGreaterThan(String id, Pageable pageable);
+}
 
 @Document
 @AllArgsConstructor
@@ -264,19 +937,86 @@ interface RoleRepository extends ReactiveMongoRepository<Role, String>{}
 @ToString
 @Builder(toBuilder = true)
 @Data
-class User {
+class User implements Versioned {
 	@Id
 	private String userId;
     private String name;
     @DBRef
 	@Builder.Default
     private List<Role> roles = new ArrayList<>();
+    @Version
+    @JsonIgnore
+    private Long version;
+    @JsonIgnore
+    private Instant lastModified;
 
     public User copy() {
         return this.toBuilder()
                 .roles(roles.stream().filter(Objects::nonNull).map(Role::copy).collect(Collectors.toList()))
                 .build();
     }
+
+    // The resolved roles in place of the role references, leaving out references to missing roles
+    public List<Role> resolvedRoles(Map<String, Role> rolesById) {
+        List<Role> resolved = new ArrayList<>(roles.size());
+        for (Role role : roles) {
+            Role resolvedRole = role == null ? null : rolesById.get(role.getId());
+            if (resolvedRole != null) {
+                resolved.add(resolvedRole);
+            }
+        }
+        return resolved;
+    }
+
+    // A new user holding the resolved roles; this user is left as it is
+    public User withResolvedRoles(Map<String, Role> rolesById) {
+        return toBuilder().roles(resolvedRoles(rolesById)).build();
+    }
+}
+
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Builder(toBuilder = true)
+@Data
+class RoleCheck {
+    private String userId;
+    private String roleId;
+    private Boolean hasRole;
+}
+
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Builder(toBuilder = true)
+@Data
+class MultiGet {
+    private List<String> ids;
+}
+
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Data
+class MultiGetItem<T> {
+    private String id;
+    private boolean found;
+    private T item;
+}
+
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Builder(toBuilder = true)
+@Data
+class UserPatch {
+    private List<String> addRoles;
+    private List<String> removeRoles;
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return (addRoles == null || addRoles.isEmpty()) && (removeRoles == null || removeRoles.isEmpty());
+    }
 }
 
 @Document
@@ -285,11 +1025,16 @@ class User {
 @ToString
 @Builder(toBuilder = true)
 @Data
-class Role {
+class Role implements Versioned {
 	@Id
 	private String id;
 	private String rolename;
 	private String description;
+    @Version
+    @JsonIgnore
+    private Long version;
+    @JsonIgnore
+    private Instant lastModified;
 
     public Role copy() {
         return this.toBuilder().build();
@@ -0,0 +1,51 @@
+package com.example.userroleservice;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.WritingConverter;
+
+/**
+ * Writes {@link User} documents with a snapshot of each role embedded in place of its reference,
+ * for {@code storage.embed-roles=true}. {@link UserReadConverter} reads the snapshots back as
+ * resolved roles.
+ */
+@WritingConverter
+class UserWriteConverter implements Converter<User, Document> {
+
+    @Override
+    public Document convert(User source) {
+        Document document = new Document("_id", source.getUserId());
+        putIfNotNull(document, "name", source.getName());
+        List<Role> roles = source.getRoles();
+        if (roles != null) {
+            document.put("roles", roles.stream()
+                    .filter(Objects::nonNull)
+                    .map(UserWriteConverter::snapshot)
+                    .collect(Collectors.toList()));
+        }
+        putIfNotNull(document, Versions.VERSION, source.getVersion());
+        putIfNotNull(document, Versions.LAST_MODIFIED, source.getLastModified() == null ? null : Date.from(source.getLastModified()));
+        return document;
+    }
+
+    // The version lets a fan-out skip users already holding a newer snapshot of the role
+    static Document snapshot(Role role) {
+        Document document = new Document("_id", role.getId());
+        putIfNotNull(document, "rolename", role.getRolename());
+        putIfNotNull(document, "description", role.getDescription());
+        putIfNotNull(document, Versions.VERSION, role.getVersion());
+        putIfNotNull(document, Versions.LAST_MODIFIED, role.getLastModified() == null ? null : Date.from(role.getLastModified()));
+        return document;
+    }
+
+    private static void putIfNotNull(Document document, String field, Object value) {
+        if (value != null) {
+            document.put(field, value);
+        }
+    }
+}
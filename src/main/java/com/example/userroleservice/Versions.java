@@ -0,0 +1,64 @@
+package com.example.userroleservice;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Optimistic locking for the atomic writes of the repository fragments. Every write increments
+ * {@code version} and stamps {@code lastModified}, and a replace can be made conditional on the
+ * version the client last read.
+ */
+final class Versions {
+
+    static final String VERSION = "version";
+    static final String LAST_MODIFIED = "lastModified";
+
+    private Versions() {
+    }
+
+    // Mongo stores dates with millisecond resolution
+    static Instant now() {
+        return Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    }
+
+    static Update bump(Update update) {
+        return update.inc(VERSION, 1).currentDate(LAST_MODIFIED);
+    }
+
+    // Documents written before versioning have no version field and read as version 0
+    static Criteria matching(Criteria criteria, Long expectedVersion) {
+        if (expectedVersion == null) {
+            return criteria;
+        }
+        return expectedVersion == 0
+                ? criteria.and(VERSION).in(0L, null)
+                : criteria.and(VERSION).is(expectedVersion);
+    }
+
+    // A conditional findAndModify matches nothing both for a missing document and for a stale
+    // version; only in the latter case is the document still there
+    static <T> Mono<T> conflictIfExists(ReactiveMongoOperations operations, Query query, Class<T> type,
+                                        Long expectedVersion) {
+        return operations.exists(query, type)
+                .flatMap(exists -> exists
+                        ? Mono.error(new OptimisticLockingFailureException(
+                                "Version " + expectedVersion + " of " + type.getSimpleName() + " is stale"))
+                        : Mono.empty());
+    }
+}
+
+// The versioned entities, so the in-memory storage engine can stamp them as the Mongo writes do
+interface Versioned {
+    Long getVersion();
+    void setVersion(Long version);
+    Instant getLastModified();
+    void setLastModified(Instant lastModified);
+}
@@ -0,0 +1,55 @@
+package com.example.userroleservice;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(properties = {
+		"admission.enabled=true",
+		"admission.client-header=X-Client-Id",
+		"admission.client-rate=0.1",
+		"admission.client-burst=2",
+		"seed.replace-existing=true"})
+public class AdmissionControlTests {
+	@Autowired
+	private WebTestClient webTestClient;
+
+	@Test
+	public void test_client_over_its_rate_is_shed_with_retry_after() {
+		for (int i = 0; i < 2; i++) {
+			webTestClient.get().uri("/api/role")
+					.header("X-Client-Id", "greedy")
+					.exchange()
+					.expectStatus().isOk();
+		}
+		webTestClient.get().uri("/api/role")
+				.header("X-Client-Id", "greedy")
+				.exchange()
+				.expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+				.expectHeader().valueEquals("Retry-After", "10");
+
+		webTestClient.get().uri("/api/role")
+				.header("X-Client-Id", "modest")
+				.exchange()
+				.expectStatus().isOk();
+		webTestClient.get().uri("/actuator/health")
+				.header("X-Client-Id", "greedy")
+				.exchange()
+				.expectStatus().isOk();
+
+		String metrics = webTestClient.get().uri("/actuator/prometheus")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody(String.class).returnResult().getResponseBody();
+		assertTrue(metrics.contains("userrole_admission_rejected_total{reason=\"rate\",route=\"GET /api/role\",}"));
+	}
+}
@@ -0,0 +1,60 @@
+package com.example.userroleservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionLimitTests {
+
+	@Test
+	public void test_concurrency_limit_sheds_beyond_limit_and_admits_after_release() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 2, 2, 1.5);
+		assertTrue(limit.tryAcquire());
+		assertTrue(limit.tryAcquire());
+		assertFalse(limit.tryAcquire());
+		assertEquals(2, limit.getInFlight());
+
+		limit.release(1_000_000, true);
+		assertTrue(limit.tryAcquire());
+	}
+
+	@Test
+	public void test_concurrency_limit_shrinks_when_latency_rises() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 4, 100, 1.5);
+		for (int i = 0; i < 200; i++) {
+			fillAndRelease(limit, 1_000_000);
+		}
+		int steady = limit.getLimit();
+		for (int i = 0; i < 50; i++) {
+			fillAndRelease(limit, 50_000_000);
+		}
+		assertTrue(limit.getLimit() < steady);
+	}
+
+	@Test
+	public void test_rate_limiter_evicts_least_recently_used_clients_beyond_max_clients() {
+		ClientRateLimiter limiter = new ClientRateLimiter(0.001, 1, 10);
+		for (char client = 'a'; client <= 'j'; client++) {
+			assertEquals(0, limiter.tryAcquire(String.valueOf(client)));
+		}
+		assertTrue(limiter.tryAcquire("a") > 0);
+
+		assertEquals(0, limiter.tryAcquire("k"));
+		assertEquals(9, limiter.size());
+		// "a" was used again and keeps its empty bucket, "b" was the least recently used and starts afresh
+		assertTrue(limiter.tryAcquire("a") > 0);
+		assertEquals(0, limiter.tryAcquire("b"));
+	}
+
+	private static void fillAndRelease(AdaptiveConcurrencyLimit limit, long latencyNanos) {
+		int acquired = 0;
+		while (limit.tryAcquire()) {
+			acquired++;
+		}
+		for (int i = 0; i < acquired; i++) {
+			limit.release(latencyNanos, true);
+		}
+	}
+}
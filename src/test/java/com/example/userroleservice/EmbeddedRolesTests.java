@@ -0,0 +1,181 @@
+package com.example.userroleservice;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import com.mongodb.DBRef;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.userroleservice.TestSupport.awaitUser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(properties = {"storage.embed-roles=true", "seed.replace-existing=true"})
+@Import(UserRoleServiceApplicationTests.MongoQueryCounterConfiguration.class)
+public class EmbeddedRolesTests {
+	@Autowired
+	private WebTestClient webTestClient;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private RoleRepository roleRepository;
+
+	@Autowired
+	private RoleCache roleCache;
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private ReactiveMongoOperations operations;
+
+	@Autowired
+	private UserRoleServiceApplicationTests.MongoQueryCounter mongoQueryCounter;
+
+	@After
+	public void deleteUsersAndRoles() {
+		Flux.just("embedded1", "embedded2", "embedded3", "referencing1")
+				.concatMap(userRepository::deleteById)
+				.blockLast();
+		roleRepository.findAll()
+				.filter(role -> role.getRolename() != null && role.getRolename().startsWith("EMB"))
+				.doOnNext(role -> roleCache.invalidate(role.getId()))
+				.concatMap(roleRepository::delete)
+				.blockLast();
+	}
+
+	@Test
+	public void test_user_reads_embedded_roles_with_one_query() {
+		Role role = createRole("EMB1");
+		createUser("embedded1", role);
+		roleCache.invalidate(role.getId());
+
+		mongoQueryCounter.reset();
+		webTestClient.get().uri("/api/user/embedded1")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.roles[0].id").isEqualTo(role.getId())
+				.jsonPath("$.roles[0].rolename").isEqualTo("EMB1")
+				.jsonPath("$.roles[0].description").isEqualTo("Beskrivning av roll EMB1");
+		assertEquals(1, mongoQueryCounter.reset());
+	}
+
+	@Test
+	public void test_role_update_and_delete_fan_out_to_users() {
+		Role role = createRole("EMB2");
+		createUser("embedded2", role);
+
+		webTestClient.put().uri("/api/role/" + role.getId())
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(role.toBuilder().rolename("EMB2b").build()), Role.class)
+				.exchange()
+				.expectStatus().isOk();
+		awaitUser(userRepository, "embedded2", user -> user.getRoles().size() == 1 && "EMB2b".equals(user.getRoles().get(0).getRolename()));
+
+		webTestClient.delete().uri("/api/role/" + role.getId())
+				.exchange()
+				.expectStatus().isOk();
+		awaitUser(userRepository, "embedded2", user -> user.getRoles().isEmpty());
+	}
+
+	@Test
+	public void test_patch_adding_a_held_role_is_one_update() {
+		Role held = createRole("EMB3");
+		Role added = createRole("EMB4");
+		createUser("embedded3", held);
+		long version = userRepository.findById("embedded3").block().getVersion();
+
+		mongoQueryCounter.resetModifications();
+		webTestClient.patch().uri("/api/user/embedded3")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(UserPatch.builder().addRoles(Arrays.asList(held.getId(), added.getId())).build()), UserPatch.class)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.roles.length()").isEqualTo(2)
+				.jsonPath("$.roles[0].id").isEqualTo(held.getId())
+				.jsonPath("$.roles[1].rolename").isEqualTo("EMB4");
+		assertEquals(1, mongoQueryCounter.resetModifications());
+		assertEquals(version + 1, (long) userRepository.findById("embedded3").block().getVersion());
+	}
+
+	@Test
+	public void test_users_holding_role_references_are_read_resolved_and_migrated() {
+		Role role = createRole("EMB5");
+		userRepository.deleteById("referencing1").block();
+		Document referencing = new Document("_id", "referencing1").append("name", "Refererande användare")
+				.append("roles", Collections.singletonList(new DBRef(operations.getCollectionName(Role.class), role.getId())));
+		operations.execute(operations.getCollectionName(User.class), collection -> collection.insertOne(referencing)).blockLast();
+
+		webTestClient.get().uri("/api/user/referencing1")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.roles[0].id").isEqualTo(role.getId())
+				.jsonPath("$.roles[0].rolename").isEqualTo("EMB5");
+
+		assertTrue(userService.embedRoleReferences().block() >= 1);
+		Document migrated = operations.execute(operations.getCollectionName(User.class),
+				collection -> collection.find(new Document("_id", "referencing1")).first()).blockFirst();
+		assertNotNull(migrated);
+		assertEquals("EMB5", ((List<?>) migrated.get("roles")).stream()
+				.map(snapshot -> ((Document) snapshot).getString("rolename"))
+				.findFirst().orElse(null));
+
+		webTestClient.get().uri("/api/role/" + role.getId() + "/users")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$[0].userId").isEqualTo("referencing1");
+
+		webTestClient.delete().uri("/api/role/" + role.getId())
+				.exchange()
+				.expectStatus().isOk();
+		awaitUser(userRepository, "referencing1", user -> user.getRoles().isEmpty());
+	}
+
+	private Role createRole(String rolename) {
+		Role role = webTestClient.post().uri("/api/role")
+				.contentType(MediaType.APPLICATION_JSON)
+				.accept(MediaType.APPLICATION_JSON)
+				.body(Mono.just(Role.builder().rolename(rolename).description("Beskrivning av roll " + rolename).build()), Role.class)
+				.exchange()
+				.expectStatus().isCreated()
+				.expectBody(Role.class).returnResult().getResponseBody();
+		assertNotNull(role);
+		return role;
+	}
+
+	private void createUser(String userId, Role role) {
+		userRepository.deleteById(userId).block();
+		webTestClient.post().uri("/api/user")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(User.builder().userId(userId).name("Inbäddad användare")
+						.roles(Collections.singletonList(Role.builder().id(role.getId()).build())).build()), User.class)
+				.exchange()
+				.expectStatus().isCreated()
+				.expectBody()
+				.jsonPath("$.roles[0].rolename").isEqualTo(role.getRolename());
+	}
+}
@@ -0,0 +1,12 @@
+package com.example.userroleservice;
+
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Runs every application test against the in-memory storage engine.
+ */
+@ActiveProfiles("memory")
+@Import(UserRoleServiceApplicationTests.MongoQueryCounterConfiguration.class)
+public class InMemoryEngineTests extends UserRoleServiceApplicationTests {
+}
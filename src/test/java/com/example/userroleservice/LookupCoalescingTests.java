@@ -0,0 +1,110 @@
+package com.example.userroleservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+// The repositories hold every load until the test opens their gate, so the lookups made meanwhile
+// are concurrent with it whatever the timing
+public class LookupCoalescingTests {
+	private final MonoProcessor<Void> userGate = MonoProcessor.create();
+	private final MonoProcessor<Void> roleGate = MonoProcessor.create();
+	private final List<List<String>> userLoads = new CopyOnWriteArrayList<>();
+	private final List<List<String>> roleLoads = new CopyOnWriteArrayList<>();
+
+	private final InMemoryUserRepository userRepository = new InMemoryUserRepository(false) {
+		@Override
+		public Flux<User> findAllById(Iterable<String> ids) {
+			userLoads.add(toList(ids));
+			return userGate.thenMany(super.findAllById(ids));
+		}
+	};
+
+	private final InMemoryRoleRepository roleRepository = new InMemoryRoleRepository() {
+		@Override
+		public Flux<Role> findAllById(Iterable<String> ids) {
+			roleLoads.add(toList(ids));
+			return roleGate.thenMany(super.findAllById(ids));
+		}
+	};
+
+	private final RoleMembershipIndex membership = new RoleMembershipIndex(100, 30);
+	private final RoleService roleService = new RoleService(roleRepository, userRepository,
+			new RoleCache(100, 300), membership, new InMemoryChangeLog(1000), 1000);
+	private final UserService userService = new UserService(userRepository, roleService, membership,
+			new InMemoryChangeLog(1000), 1000);
+
+	@Before
+	public void setUp() {
+		for (int i = 1; i <= 3; i++) {
+			userRepository.save(User.builder().userId("look" + i).name("Användare " + i).build()).block();
+			roleRepository.save(Role.builder().id("LOOK" + i).rolename("LOOK" + i).build()).block();
+		}
+	}
+
+	@Test
+	public void test_concurrent_lookups_of_a_user_share_one_database_call() {
+		MonoProcessor<List<User>> users = lookUp(IntStream.range(0, 100).mapToObj(i -> "look1"));
+		assertEquals(Collections.singletonList(Collections.singletonList("look1")), userLoads);
+		assertFalse(users.isTerminated());
+
+		userGate.onComplete();
+		assertEquals(100, users.block().size());
+		assertEquals(1, userLoads.size());
+	}
+
+	@Test
+	public void test_users_looked_up_while_a_load_runs_are_loaded_together_after_it() {
+		MonoProcessor<List<User>> first = lookUp(IntStream.range(0, 1).mapToObj(i -> "look1"));
+		MonoProcessor<List<User>> rest = lookUp(IntStream.range(0, 100).mapToObj(i -> "look" + (i % 3 + 1)));
+		assertEquals(1, userLoads.size());
+
+		userGate.onComplete();
+		assertEquals(1, first.block().size());
+		assertEquals(100, rest.block().size());
+		assertEquals(2, userLoads.size());
+		assertEquals(new HashSet<>(Arrays.asList("look2", "look3")), new HashSet<>(userLoads.get(1)));
+	}
+
+	@Test
+	public void test_concurrent_lookups_of_roles_share_their_database_calls() {
+		MonoProcessor<List<Role>> roles = Flux.merge(IntStream.range(0, 100)
+				.mapToObj(i -> roleService.findById("LOOK" + (i % 2 + 1)))
+				.collect(Collectors.toList()))
+				.collectList()
+				.toProcessor();
+		assertEquals(Collections.singletonList(Collections.singletonList("LOOK1")), roleLoads);
+
+		roleGate.onComplete();
+		assertEquals(100, roles.block().size());
+		assertEquals(2, roleLoads.size());
+		assertEquals(Collections.singletonList("LOOK2"), roleLoads.get(1));
+	}
+
+	private MonoProcessor<List<User>> lookUp(Stream<String> ids) {
+		return Flux.merge(ids.map(userService::findById).collect(Collectors.toList()))
+				.collectList()
+				.toProcessor();
+	}
+
+	private static List<String> toList(Iterable<String> ids) {
+		List<String> list = new ArrayList<>();
+		ids.forEach(list::add);
+		return list;
+	}
+}
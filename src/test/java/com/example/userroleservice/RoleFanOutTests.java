@@ -0,0 +1,95 @@
+package com.example.userroleservice;
+
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class RoleFanOutTests {
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private final InMemoryUserRepository userRepository = new InMemoryUserRepository(true) {
+		@Override
+		public Flux<String> updateEmbeddedRoles(List<Role> roles) {
+			return failures.getAndDecrement() > 0
+					? Flux.error(new IllegalStateException("Users unavailable"))
+					: super.updateEmbeddedRoles(roles);
+		}
+
+		@Override
+		public Flux<String> removeRoleFromAll(String roleId) {
+			return failures.getAndDecrement() > 0
+					? Flux.error(new IllegalStateException("Users unavailable"))
+					: super.removeRoleFromAll(roleId);
+		}
+	};
+
+	private final InMemoryChangeLog changeLog = new InMemoryChangeLog(1000);
+
+	// The in-memory repositories answer at once, so the fan-outs only wait for the retry delays on this timer
+	private final VirtualTimeScheduler timer = VirtualTimeScheduler.create();
+
+	private final RoleService roleService = new RoleService(new InMemoryRoleRepository(), userRepository,
+			new RoleCache(100, 300), new RoleMembershipIndex(100, 30), changeLog, 1000,
+			RoleService.FAN_OUT_RETRY_DELAY, timer);
+
+	@After
+	public void disposeTimer() {
+		timer.dispose();
+	}
+
+	@Test
+	public void test_failed_fan_out_is_retried_until_users_catch_up() {
+		Role role = roleService.addNewRole(Mono.just(Role.builder().rolename("FAN1").build())).block();
+		assertNotNull(role);
+		userRepository.save(User.builder().userId("fan1").name("Utspridd användare")
+				.roles(Collections.singletonList(role)).build()).block();
+
+		// The retries end 700 ms in
+		failures.set(RoleService.FAN_OUT_RETRIES);
+		roleService.updateRole(Mono.just(role.toBuilder().rolename("FAN1b").build()), null).block();
+		timer.advanceTimeBy(Duration.ofMillis(699));
+		assertEquals("FAN1", userRepository.findById("fan1").block().getRoles().get(0).getRolename());
+		timer.advanceTimeBy(Duration.ofMillis(1));
+		assertEquals("FAN1b", userRepository.findById("fan1").block().getRoles().get(0).getRolename());
+
+		failures.set(RoleService.FAN_OUT_RETRIES);
+		roleService.deleteById(role.getId()).block();
+		timer.advanceTimeBy(Duration.ofMillis(700));
+		assertEquals(Collections.emptyList(), userRepository.findById("fan1").block().getRoles());
+
+		// Each fan-out logs the user it changed once it has changed it
+		assertEquals(Arrays.asList("fan1 UPDATE", "fan1 UPDATE"), changeLog.findSince(null, 100)
+				.filter(change -> ChangeLog.USER.equals(change.getEntity()))
+				.map(change -> change.getEntityId() + " " + change.getOperation())
+				.collectList()
+				.block());
+	}
+
+	@Test
+	public void test_fan_out_gives_up_after_its_retries_without_failing_the_role_write() {
+		Role role = roleService.addNewRole(Mono.just(Role.builder().rolename("FAN2").build())).block();
+		assertNotNull(role);
+		userRepository.save(User.builder().userId("fan2").name("Utspridd användare")
+				.roles(Collections.singletonList(role)).build()).block();
+
+		failures.set(RoleService.FAN_OUT_RETRIES + 1);
+		Role updated = roleService.updateRole(Mono.just(role.toBuilder().rolename("FAN2b").build()), null).block();
+		assertNotNull(updated);
+
+		// A fifth attempt would take the failures below zero
+		timer.advanceTimeBy(Duration.ofMinutes(1));
+		assertEquals(0, failures.get());
+		assertEquals("FAN2", userRepository.findById("fan2").block().getRoles().get(0).getRolename());
+	}
+}
@@ -0,0 +1,73 @@
+package com.example.userroleservice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RoleMembershipIndexTests {
+	private final RoleMembershipIndex index = new RoleMembershipIndex(2, 30);
+
+	@Test
+	public void test_indexed_user_answers_from_its_role_set() {
+		assertNull(index.hasRole("u1", "R1"));
+		index.fill(user("u1", "R1", "R2"), index.stamp("u1"));
+
+		assertTrue(index.hasRole("u1", "R1"));
+		assertTrue(index.hasRole("u1", "R2"));
+		assertFalse(index.hasRole("u1", "R3"));
+	}
+
+	@Test
+	public void test_user_read_before_a_write_is_not_indexed_after_it() {
+		long stamp = index.stamp("u1");
+		index.invalidate("u1");
+		index.fill(user("u1", "R1"), stamp);
+		assertNull(index.hasRole("u1", "R1"));
+
+		index.fill(user("u1"), index.stamp("u1"));
+		assertFalse(index.hasRole("u1", "R1"));
+		index.invalidate("u1");
+		assertNull(index.hasRole("u1", "R1"));
+	}
+
+	@Test
+	public void test_deleted_role_is_held_by_no_one_even_once_re_created() {
+		index.fill(user("u1", "R1"), index.stamp("u1"));
+		long stamp = index.stamp("u2");
+		index.removeRole("R1");
+		assertFalse(index.hasRole("u1", "R1"));
+
+		// Read before the role's users were detached from it
+		index.fill(user("u2", "R1"), stamp);
+		assertNull(index.hasRole("u2", "R1"));
+
+		index.fill(user("u3", "R1"), index.stamp("u3"));
+		assertTrue(index.hasRole("u3", "R1"));
+		assertFalse(index.hasRole("u1", "R1"));
+	}
+
+	@Test
+	public void test_least_recently_checked_user_is_evicted_beyond_maximum_size() {
+		index.fill(user("u1", "R1"), index.stamp("u1"));
+		index.fill(user("u2", "R1"), index.stamp("u2"));
+		index.hasRole("u1", "R1");
+		index.fill(user("u3", "R1"), index.stamp("u3"));
+
+		assertEquals(2, index.size());
+		assertTrue(index.hasRole("u1", "R1"));
+		assertNull(index.hasRole("u2", "R1"));
+	}
+
+	private static User user(String userId, String... roleIds) {
+		return User.builder()
+				.userId(userId)
+				.roles(Arrays.stream(roleIds).map(id -> Role.builder().id(id).build()).collect(Collectors.toList()))
+				.build();
+	}
+}
@@ -0,0 +1,35 @@
+package com.example.userroleservice;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Waits for the outcome of work the services finish in the background, such as role fan-outs.
+ */
+final class TestSupport {
+	private static final Duration POLL_INTERVAL = Duration.ofMillis(50);
+	private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+	private TestSupport() {
+	}
+
+	// Reads the value again until it is done, failing once the timeout has passed
+	static <T> T await(Supplier<Mono<T>> read, Predicate<T> done) {
+		T value = Flux.interval(POLL_INTERVAL)
+				.concatMap(i -> read.get())
+				.filter(done)
+				.blockFirst(TIMEOUT);
+		assertNotNull(value);
+		return value;
+	}
+
+	static User awaitUser(UserRepository userRepository, String userId, Predicate<User> caughtUp) {
+		return await(() -> userRepository.findById(userId), caughtUp);
+	}
+}
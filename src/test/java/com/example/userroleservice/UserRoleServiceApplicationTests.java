@@ -2,28 +2,143 @@ package com.example.userroleservice;
 
 import org.assertj.core.util.Lists;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.data.domain.Example;
+import org.springframework.data.domain.ExampleMatcher;
+import org.springframework.data.domain.Sort;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(properties = "seed.replace-existing=true")
 public class UserRoleServiceApplicationTests {
 	@Autowired
 	private WebTestClient webTestClient;
 
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private RoleRepository roleRepository;
+
+	@Autowired
+	private ChangeLog changeLog;
+
+	@Value("${storage.engine:mongo}")
+	private String storageEngine;
+
+	@Autowired
+	private MongoQueryCounter mongoQueryCounter;
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private RoleService roleService;
+
+	@Autowired
+	private RoleCache roleCache;
+
+	@Autowired
+	private RoleMembershipIndex membership;
+
+	@Autowired
+	private Bootstrap bootstrap;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@TestConfiguration
+	static class MongoQueryCounterConfiguration {
+		@Bean
+		MongoQueryCounter mongoQueryCounter() {
+			return new MongoQueryCounter();
+		}
+
+		@Bean
+		MongoClientSettingsBuilderCustomizer mongoQueryCounterCustomizer(MongoQueryCounter counter) {
+			return builder -> builder.addCommandListener(counter);
+		}
+	}
+
+	static class MongoQueryCounter implements CommandListener {
+		private final AtomicInteger queries = new AtomicInteger();
+		private final AtomicInteger modifications = new AtomicInteger();
+
+		@Override
+		public void commandStarted(CommandStartedEvent event) {
+			if ("find".equals(event.getCommandName()) || "aggregate".equals(event.getCommandName())) {
+				queries.incrementAndGet();
+			} else if ("findAndModify".equals(event.getCommandName())) {
+				modifications.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void commandSucceeded(CommandSucceededEvent event) {
+		}
+
+		@Override
+		public void commandFailed(CommandFailedEvent event) {
+		}
+
+		int reset() {
+			return queries.getAndSet(0);
+		}
+
+		int resetModifications() {
+			return modifications.getAndSet(0);
+		}
+	}
+
 	@Test
 	public void test_get_all_users() {
 		webTestClient.get().uri("/api/user")
@@ -32,6 +147,21 @@ public class UserRoleServiceApplicationTests {
 				.expectBodyList(User.class).hasSize(3);
 	}
 
+	@Test
+	public void test_bootstrap_is_up_after_indexing_and_seeding() {
+		Health health = bootstrap.health();
+		assertEquals(Status.UP, health.getStatus());
+		Map<?, ?> phaseMillis = (Map<?, ?>) health.getDetails().get("phaseMillis");
+		assertEquals(Arrays.asList("indexes", "clear", "seed roles", "seed users"), new ArrayList<>(phaseMillis.keySet()));
+
+		webTestClient.get().uri("/api/role/1-1-1-1-2")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.rolename").isEqualTo("R2")
+				.jsonPath("$.description").isEqualTo("Beskrivning av roll R2");
+	}
+
 	@Test
 	public void test_with_jsonPath_get_by_userId() {
 		webTestClient.get().uri("/api/user/user1")
@@ -64,6 +194,46 @@ public class UserRoleServiceApplicationTests {
 				.isEqualTo(user);
 	}
 
+	@Test
+	public void test_smile_and_cbor_are_negotiated_by_accept_and_content_type() throws IOException {
+		for (MediaType mediaType : Arrays.asList(UserRoleServiceApplication.APPLICATION_SMILE, UserRoleServiceApplication.APPLICATION_CBOR)) {
+			ObjectMapper mapper = new ObjectMapper(
+					UserRoleServiceApplication.APPLICATION_SMILE.equals(mediaType) ? new SmileFactory() : new CBORFactory());
+			String userId = "binary-" + mediaType.getSubtype();
+			User user = User.builder().userId(userId).name("Binär användare").roles(new ArrayList<>()).build();
+
+			byte[] created = webTestClient.post().uri("/api/user")
+					.contentType(mediaType)
+					.accept(mediaType)
+					.syncBody(mapper.writeValueAsBytes(user))
+					.exchange()
+					.expectStatus().isCreated()
+					.expectHeader().contentType(mediaType)
+					.expectBody(byte[].class).returnResult().getResponseBody();
+			assertEquals(user, mapper.readValue(created, User.class));
+
+			byte[] page = webTestClient.get().uri("/api/user?after=binary-&limit=10")
+					.accept(mediaType)
+					.exchange()
+					.expectStatus().isOk()
+					.expectHeader().contentType(mediaType)
+					.expectBody(byte[].class).returnResult().getResponseBody();
+			List<User> users = mapper.readValue(page, new TypeReference<List<User>>() {});
+			assertTrue(users.stream().anyMatch(u -> userId.equals(u.getUserId())));
+
+			webTestClient.delete().uri("/api/user/" + userId)
+					.exchange()
+					.expectStatus().isOk();
+		}
+
+		webTestClient.get().uri("/api/user/user1")
+				.accept(MediaType.ALL)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.userId").isEqualTo("user1");
+	}
+
 	@Test
 	public void test_not_found_for_non_existing_user() {
 		webTestClient.get().uri("/api/user/nonexistinguser")
@@ -129,6 +299,256 @@ public class UserRoleServiceApplicationTests {
 				.expectStatus().isNotFound();
 	}
 
+	@Test
+	public void test_patch_user_roles() {
+		User user = User.builder().userId("patch1").name("Testanvändare").roles(Arrays.asList(Role.builder().id("1-1-1-1-1").build())).build();
+		userRepository.save(user).block();
+		try {
+			webTestClient.patch().uri("/api/user/patch1")
+					.contentType(MediaType.APPLICATION_JSON)
+					.body(Mono.just(UserPatch.builder().addRoles(Arrays.asList("1-1-1-1-2", "1-1-1-1-3")).build()), UserPatch.class)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.roles.length()").isEqualTo(3)
+					.jsonPath("$.roles[2].rolename").isEqualTo("R3");
+
+			webTestClient.patch().uri("/api/user/patch1")
+					.contentType(MediaType.APPLICATION_JSON)
+					.body(Mono.just(UserPatch.builder().addRoles(Arrays.asList("1-1-1-1-2")).removeRoles(Arrays.asList("1-1-1-1-1", "1-1-1-1-3")).build()), UserPatch.class)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.name").isEqualTo(user.getName())
+					.jsonPath("$.roles.length()").isEqualTo(1)
+					.jsonPath("$.roles[0].id").isEqualTo("1-1-1-1-2");
+		} finally {
+			userRepository.deleteById("patch1").block();
+		}
+
+		webTestClient.patch().uri("/api/user/patch1")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(UserPatch.builder().addRoles(Arrays.asList("1-1-1-1-2")).build()), UserPatch.class)
+				.exchange()
+				.expectStatus().isNotFound();
+	}
+
+	@Test
+	public void test_update_and_delete_are_single_database_calls() {
+		assumeMongo();
+		userRepository.save(User.builder().userId("atomic1").name("Testanvändare").build()).block();
+
+		mongoQueryCounter.reset();
+		mongoQueryCounter.resetModifications();
+		webTestClient.put().uri("/api/user/atomic1")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(User.builder().userId("atomic1").name("Testanvändare2").build()), User.class)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.name").isEqualTo("Testanvändare2");
+		webTestClient.delete().uri("/api/user/atomic1")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.name").isEqualTo("Testanvändare2");
+
+		assertEquals(0, mongoQueryCounter.reset());
+		assertEquals(2, mongoQueryCounter.resetModifications());
+
+		webTestClient.put().uri("/api/user/atomic1")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(User.builder().userId("atomic1").name("Testanvändare3").build()), User.class)
+				.exchange()
+				.expectStatus().isNotFound();
+	}
+
+	@Test
+	public void test_list_users_holding_role_and_detach_on_delete() {
+		Role role = roleRepository.save(Role.builder().id("rev-role").rolename("REV").build()).block();
+		List<User> users = Arrays.asList(
+				User.builder().userId("rev-a").name("Testanvändare a").roles(Arrays.asList(role)).build(),
+				User.builder().userId("rev-b").name("Testanvändare b").roles(Arrays.asList(role, Role.builder().id("1-1-1-1-1").build())).build());
+		userRepository.saveAll(users).blockLast();
+		try {
+			webTestClient.get().uri("/api/role/rev-role/users")
+					.exchange()
+					.expectStatus().isOk()
+					.expectBodyList(User.class).hasSize(2);
+
+			webTestClient.get().uri("/api/role/rev-role/users?limit=1")
+					.exchange()
+					.expectStatus().isOk()
+					.expectHeader().valueEquals(UserRoleServiceApplication.NEXT_CURSOR_HEADER, "rev-a")
+					.expectBodyList(User.class).hasSize(1);
+
+			webTestClient.get().uri("/api/role/rev-role/users?after=rev-a")
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.length()").isEqualTo(1)
+					.jsonPath("$[0].userId").isEqualTo("rev-b");
+
+			String since = changeLog.latestToken().block();
+			webTestClient.delete().uri("/api/role/rev-role")
+					.exchange()
+					.expectStatus().isOk();
+
+			assertTrue(userRepository.findById("rev-a").block().getRoles().isEmpty());
+			assertEquals(Arrays.asList("1-1-1-1-1"), userRepository.findById("rev-b").block().getRoles().stream()
+					.map(Role::getId)
+					.collect(Collectors.toList()));
+			// The detached users are logged before the role delete
+			assertEquals(Arrays.asList("user rev-a UPDATE", "user rev-b UPDATE", "role rev-role DELETE"),
+					changeLog.findSince(since, 100)
+							.filter(change -> change.getEntityId().startsWith("rev-"))
+							.map(change -> change.getEntity() + " " + change.getEntityId() + " " + change.getOperation())
+							.collectList()
+							.block());
+		} finally {
+			userRepository.deleteAll(users).block();
+			roleRepository.deleteById("rev-role").block();
+		}
+	}
+
+	@Test
+	public void test_has_role_is_answered_without_database_calls() {
+		assumeMongo();
+		membership.invalidateAll();
+		roleService.findById("1-1-1-1-1").block();
+		webTestClient.get().uri("/api/user/user1/has-role/1-1-1-1-1")
+				.exchange()
+				.expectStatus().isOk();
+
+		mongoQueryCounter.reset();
+		webTestClient.get().uri("/api/user/user1/has-role/1-1-1-1-1")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.hasRole").isEqualTo(true);
+		webTestClient.get().uri("/api/user/user1/has-role/1-1-1-1-2")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.hasRole").isEqualTo(false);
+		webTestClient.post().uri("/api/user/_has-role")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Flux.just(new RoleCheck("user1", "1-1-1-1-1", null)), RoleCheck.class)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$[0].hasRole").isEqualTo(true);
+		assertEquals(0, mongoQueryCounter.reset());
+
+		webTestClient.get().uri("/api/user/nonexistinguser/has-role/1-1-1-1-1")
+				.exchange()
+				.expectStatus().isNotFound();
+	}
+
+	@Test
+	public void test_batched_has_role_checks_share_one_user_query() {
+		assumeMongo();
+		membership.invalidateAll();
+		roleService.findById("1-1-1-1-1").block();
+
+		mongoQueryCounter.reset();
+		webTestClient.post().uri("/api/user/_has-role")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Flux.just(
+						new RoleCheck("user1", "1-1-1-1-1", null),
+						new RoleCheck("user2", "1-1-1-1-1", null),
+						new RoleCheck("user3", "1-1-1-1-2", null)), RoleCheck.class)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$[0].hasRole").isEqualTo(true)
+				.jsonPath("$[1].hasRole").isEqualTo(false)
+				.jsonPath("$[2].hasRole").isEqualTo(false);
+		assertEquals(1, mongoQueryCounter.reset());
+	}
+
+	@Test
+	public void test_has_role_follows_user_writes() {
+		User user = User.builder().userId("authz1").name("Testanvändare").roles(Arrays.asList(Role.builder().id("1-1-1-1-1").build())).build();
+		webTestClient.post().uri("/api/user")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(user), User.class)
+				.exchange()
+				.expectStatus().isCreated();
+		try {
+			webTestClient.get().uri("/api/user/authz1/has-role/1-1-1-1-1")
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.hasRole").isEqualTo(true);
+
+			webTestClient.patch().uri("/api/user/authz1")
+					.contentType(MediaType.APPLICATION_JSON)
+					.body(Mono.just(UserPatch.builder().addRoles(Arrays.asList("1-1-1-1-2")).removeRoles(Arrays.asList("1-1-1-1-1")).build()), UserPatch.class)
+					.exchange()
+					.expectStatus().isOk();
+
+			webTestClient.post().uri("/api/user/_has-role")
+					.contentType(MediaType.APPLICATION_JSON)
+					.body(Flux.just(
+							new RoleCheck("authz1", "1-1-1-1-1", null),
+							new RoleCheck("authz1", "1-1-1-1-2", null),
+							new RoleCheck("nonexistinguser", "1-1-1-1-2", null)), RoleCheck.class)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$[0].hasRole").isEqualTo(false)
+					.jsonPath("$[1].hasRole").isEqualTo(true)
+					.jsonPath("$[2].hasRole").isEqualTo(false);
+		} finally {
+			webTestClient.delete().uri("/api/user/authz1")
+					.exchange()
+					.expectStatus().isOk();
+		}
+
+		webTestClient.get().uri("/api/user/authz1/has-role/1-1-1-1-2")
+				.exchange()
+				.expectStatus().isNotFound();
+	}
+
+	@Test
+	public void test_route_and_database_metrics_are_exposed() {
+		webTestClient.get().uri("/api/user/user1")
+				.exchange()
+				.expectStatus().isOk();
+
+		// With its roles cached, a user lookup is one find command, sent by the lookup batch it joined;
+		// the in-memory engine sends none
+		DistributionSummary dbCalls = meterRegistry.summary("userrole.route.db.calls", "route", "GET /api/user/{id}");
+		long count = dbCalls.count();
+		double total = dbCalls.totalAmount();
+		webTestClient.get().uri("/api/user/user1")
+				.exchange()
+				.expectStatus().isOk();
+		// Recorded when the exchange completes on the server, which may be just after the client has the response
+		Flux.interval(Duration.ofMillis(10))
+				.filter(tick -> dbCalls.count() > count)
+				.take(Duration.ofSeconds(5))
+				.blockFirst();
+		assertEquals(count + 1, dbCalls.count());
+		assertEquals(total + ("mongo".equals(storageEngine) ? 1 : 0), dbCalls.totalAmount(), 0);
+
+		String metrics = webTestClient.get().uri("/actuator/prometheus")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody(String.class).returnResult().getResponseBody();
+
+		assertTrue(metrics.contains("userrole_route_requests_seconds_count{route=\"GET /api/user/{id}\",status=\"200\",}"));
+		assertTrue(metrics.contains("userrole_route_db_calls_count{route=\"GET /api/user/{id}\",}"));
+		assertTrue(metrics.contains("userrole_service_calls_seconds_count{component=\"user.service\",method=\"findById\",outcome=\"success\",}"));
+		assertTrue(metrics.contains("userrole_repository_documents_count{component=\"user.repository\",method=\"findById\",}"));
+		assertTrue(metrics.contains("userrole_role_cache_gets_total{result=\"hit\",}"));
+		assertTrue(metrics.contains("userrole_role_cache_size "));
+		if ("mongo".equals(storageEngine)) {
+			assertTrue(metrics.contains("mongodb_commands_seconds_count{command=\"find\",outcome=\"success\",}"));
+		}
+	}
+
 	@Test
 	public void test_crud_role() {
 		Role role = Role.builder().rolename("x").description("Testroll x").build();
@@ -197,6 +617,25 @@ public class UserRoleServiceApplicationTests {
 				});
 	}
 
+	@Test
+	public void test_find_roles_sorted_and_by_example() {
+		List<String> names = roleRepository.findAll(Sort.by(Sort.Direction.DESC, "rolename"))
+				.map(Role::getRolename)
+				.filter(name -> name.matches("R[1-3]"))
+				.collectList().block();
+		assertEquals(Arrays.asList("R3", "R2", "R1"), names);
+
+		Role role = roleRepository.findOne(Example.of(Role.builder().rolename("r2").build(),
+				ExampleMatcher.matching().withIgnoreCase())).block();
+		assertNotNull(role);
+		assertEquals("1-1-1-1-2", role.getId());
+
+		Example<Role> described = Example.of(Role.builder().description("roll R").build(),
+				ExampleMatcher.matching().withStringMatcher(ExampleMatcher.StringMatcher.CONTAINING));
+		assertEquals(Long.valueOf(3), roleRepository.count(described).block());
+		assertEquals(Boolean.FALSE, roleRepository.exists(Example.of(Role.builder().rolename("R4").build())).block());
+	}
+
 	@Test
 	public void test_existing_role_with_findRoleById() {
 		Role role = webTestClient.get().uri("/api/role/1-1-1-1-1")
@@ -261,4 +700,480 @@ public class UserRoleServiceApplicationTests {
 				.expectStatus().isOk();
 
 	}
+
+	@Test
+	public void test_page_through_users_with_cursor() {
+		List<String> all = webTestClient.get().uri("/api/user")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBodyList(User.class)
+				.returnResult().getResponseBody().stream()
+				.map(User::getUserId)
+				.collect(Collectors.toList());
+
+		List<String> paged = new ArrayList<>();
+		String uri = "/api/user?limit=1";
+		while (uri != null) {
+			EntityExchangeResult<List<User>> result = webTestClient.get().uri(uri)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBodyList(User.class)
+					.returnResult();
+			result.getResponseBody().forEach(u -> paged.add(u.getUserId()));
+			String next = result.getResponseHeaders().getFirst(UserRoleServiceApplication.NEXT_CURSOR_HEADER);
+			uri = next == null ? null : "/api/user?limit=1&after=" + next;
+		}
+
+		assertEquals(all, paged);
+	}
+
+	@Test
+	public void test_page_through_roles_with_cursor() {
+		webTestClient.get().uri("/api/role?limit=2")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(UserRoleServiceApplication.NEXT_CURSOR_HEADER, "1-1-1-1-2")
+				.expectBodyList(Role.class).hasSize(2);
+
+		webTestClient.get().uri("/api/role?limit=2&after=1-1-1-1-2")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBodyList(Role.class).hasSize(1);
+	}
+
+	@Test
+	public void test_bad_request_for_invalid_limit() {
+		webTestClient.get().uri("/api/user?limit=zero")
+				.exchange()
+				.expectStatus().isBadRequest();
+
+		webTestClient.get().uri("/api/role?limit=0")
+				.exchange()
+				.expectStatus().isBadRequest();
+	}
+
+	@Test
+	public void test_stream_users_as_server_sent_events() {
+		webTestClient.get().uri("/api/user")
+				.accept(MediaType.TEXT_EVENT_STREAM)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType(MediaType.TEXT_EVENT_STREAM)
+				.returnResult(User.class)
+				.getResponseBody()
+				.collectList()
+				.doOnNext(users -> assertEquals(3, users.size()))
+				.block(Duration.ofSeconds(10));
+	}
+
+	@Test
+	public void test_export_users_streams_ndjson_lines_on_demand() {
+		int userCount = 2000;
+		List<Role> roles = Arrays.asList(Role.builder().id("1-1-1-1-1").build());
+		List<User> users = IntStream.range(0, userCount)
+				.mapToObj(i -> User.builder().userId(String.format("export-%06d", i)).name("Exportanvändare " + i).roles(roles).build())
+				.collect(Collectors.toList());
+		userRepository.insert(users).blockLast();
+		try {
+			Flux<DataBuffer> body = webTestClient.get().uri("/api/user")
+					.accept(UserRoleServiceApplication.APPLICATION_NDJSON)
+					.exchange()
+					.expectStatus().isOk()
+					.expectHeader().contentType(UserRoleServiceApplication.APPLICATION_NDJSON)
+					.returnResult(DataBuffer.class)
+					.getResponseBody();
+
+			// Complete lines arrive one buffer at a time, and the rest of the export is never read
+			StepVerifier.create(body.limitRate(1), 1)
+					.assertNext(buffer -> {
+						String lines = StandardCharsets.UTF_8.decode(buffer.asByteBuffer()).toString();
+						DataBufferUtils.release(buffer);
+						assertTrue(lines.startsWith("{\"userId\":"));
+						assertTrue(lines.contains("}\n"));
+						assertTrue(lines.split("\n").length < userCount);
+					})
+					.thenCancel()
+					.verify(Duration.ofSeconds(10));
+		} finally {
+			deleteUsers("export-");
+		}
+	}
+
+	@Test
+	public void test_bulk_create_users_reports_per_item_results() {
+		List<User> users = Arrays.asList(
+				User.builder().userId("bulk-1").name("Bulkanvändare 1").build(),
+				User.builder().name("Utan id").build(),
+				User.builder().userId("bulk-2").name("Bulkanvändare 2").build());
+		try {
+			webTestClient.post().uri("/api/user/_bulk")
+					.contentType(MediaType.APPLICATION_JSON)
+					.accept(MediaType.APPLICATION_JSON)
+					.body(Flux.fromIterable(users), User.class)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.length()").isEqualTo(3)
+					.jsonPath("$[0].id").isEqualTo("bulk-1")
+					.jsonPath("$[0].status").isEqualTo(201)
+					.jsonPath("$[1].status").isEqualTo(400)
+					.jsonPath("$[2].id").isEqualTo("bulk-2")
+					.jsonPath("$[2].status").isEqualTo(201);
+
+			webTestClient.get().uri("/api/user/bulk-2")
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.name").isEqualTo("Bulkanvändare 2");
+		} finally {
+			deleteUsers("bulk-");
+		}
+	}
+
+	@Test
+	public void test_bulk_create_roles_from_ndjson() {
+		String body = "{\"id\":\"bulk-role-1\",\"rolename\":\"B1\"}\n{\"rolename\":\"B2\"}\n";
+		try {
+			webTestClient.post().uri("/api/role/_bulk")
+					.contentType(UserRoleServiceApplication.APPLICATION_NDJSON)
+					.accept(MediaType.APPLICATION_JSON)
+					.syncBody(body)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBodyList(BulkItemResult.class).hasSize(2)
+					.consumeWith(result -> result.getResponseBody().forEach(r -> assertEquals(201, r.getStatus())));
+
+			webTestClient.get().uri("/api/role/bulk-role-1")
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.rolename").isEqualTo("B1");
+		} finally {
+			roleRepository.deleteAll(roleRepository.findAll()
+					.filter(role -> Arrays.asList("B1", "B2").contains(role.getRolename()))).block();
+		}
+	}
+
+	@Test
+	public void test_conditional_get_and_update_with_etags() {
+		List<Role> roles = Arrays.asList(Role.builder().id("1-1-1-1-1").build());
+		webTestClient.post().uri("/api/user")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(User.builder().userId("etag1").name("Testanvändare").roles(roles).build()), User.class)
+				.exchange()
+				.expectStatus().isCreated();
+		try {
+			String etag = webTestClient.get().uri("/api/user/etag1")
+					.exchange()
+					.expectStatus().isOk()
+					.expectHeader().valueMatches(HttpHeaders.LAST_MODIFIED, ".+")
+					.expectBody(User.class)
+					.returnResult().getResponseHeaders().getETag();
+			assertNotNull(etag);
+
+			webTestClient.get().uri("/api/user/etag1")
+					.header(HttpHeaders.IF_NONE_MATCH, etag)
+					.exchange()
+					.expectStatus().isNotModified()
+					.expectBody().isEmpty();
+
+			webTestClient.put().uri("/api/user/etag1")
+					.contentType(MediaType.APPLICATION_JSON)
+					.header(HttpHeaders.IF_MATCH, etag)
+					.body(Mono.just(User.builder().userId("etag1").name("Testanvändare2").roles(roles).build()), User.class)
+					.exchange()
+					.expectStatus().isOk();
+
+			webTestClient.put().uri("/api/user/etag1")
+					.contentType(MediaType.APPLICATION_JSON)
+					.header(HttpHeaders.IF_MATCH, etag)
+					.body(Mono.just(User.builder().userId("etag1").name("Testanvändare3").roles(roles).build()), User.class)
+					.exchange()
+					.expectStatus().isEqualTo(HttpStatus.PRECONDITION_FAILED);
+
+			webTestClient.get().uri("/api/user/etag1")
+					.header(HttpHeaders.IF_NONE_MATCH, etag)
+					.exchange()
+					.expectStatus().isOk()
+					.expectBody()
+					.jsonPath("$.name").isEqualTo("Testanvändare2");
+		} finally {
+			userRepository.deleteById("etag1").block();
+		}
+	}
+
+	@Test
+	public void test_unchanged_role_page_is_not_modified() {
+		String etag = webTestClient.get().uri("/api/role")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBodyList(Role.class)
+				.returnResult().getResponseHeaders().getETag();
+		assertNotNull(etag);
+
+		webTestClient.get().uri("/api/role")
+				.header(HttpHeaders.IF_NONE_MATCH, etag)
+				.exchange()
+				.expectStatus().isNotModified();
+	}
+
+	@Test
+	public void test_changes_since_token() {
+		User user = User.builder().userId("change1").name("Testanvändare").build();
+		// a create and delete first, so there is a latest change to read from
+		webTestClient.post().uri("/api/user")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(user.toBuilder().userId("change0").build()), User.class)
+				.exchange()
+				.expectStatus().isCreated();
+		webTestClient.delete().uri("/api/user/change0")
+				.exchange()
+				.expectStatus().isOk();
+		String since = latestChangeToken();
+		webTestClient.post().uri("/api/user")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(user), User.class)
+				.exchange()
+				.expectStatus().isCreated();
+		webTestClient.put().uri("/api/user/change1")
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(Mono.just(user.toBuilder().name("Testanvändare2").build()), User.class)
+				.exchange()
+				.expectStatus().isOk();
+		webTestClient.delete().uri("/api/user/change1")
+				.exchange()
+				.expectStatus().isOk();
+
+		EntityExchangeResult<List<Change>> result = webTestClient.get().uri("/api/changes?since=" + since)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBodyList(Change.class)
+				.returnResult();
+		List<Change> changes = result.getResponseBody().stream()
+				.filter(change -> "change1".equals(change.getEntityId()))
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList(Change.Operation.CREATE, Change.Operation.UPDATE, Change.Operation.DELETE),
+				changes.stream().map(Change::getOperation).collect(Collectors.toList()));
+		assertEquals(ChangeLog.USER, changes.get(0).getEntity());
+		String next = result.getResponseHeaders().getFirst(UserRoleServiceApplication.NEXT_CURSOR_HEADER);
+		assertEquals(changes.get(2).getToken(), next);
+
+		webTestClient.get().uri("/api/changes?since=" + next)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBodyList(Change.class).hasSize(0);
+
+		List<Change> live = webTestClient.get().uri("/api/changes?since=" + since)
+				.accept(MediaType.TEXT_EVENT_STREAM)
+				.exchange()
+				.expectStatus().isOk()
+				.returnResult(Change.class)
+				.getResponseBody()
+				.filter(change -> "change1".equals(change.getEntityId()))
+				.take(3)
+				.collectList()
+				.block(Duration.ofSeconds(10));
+		assertEquals(changes.stream().map(Change::getToken).collect(Collectors.toList()),
+				live.stream().map(Change::getToken).collect(Collectors.toList()));
+
+		webTestClient.get().uri("/api/changes?since=not-a-token")
+				.exchange()
+				.expectStatus().isBadRequest();
+	}
+
+	private String latestChangeToken() {
+		String latest = changeLog.latestToken().block();
+		assertNotNull(latest);
+		return latest;
+	}
+
+	@Test
+	public void test_mget_answers_in_request_order_with_not_found_markers() {
+		webTestClient.post().uri("/api/user/_mget")
+				.contentType(MediaType.APPLICATION_JSON)
+				.syncBody(new MultiGet(Arrays.asList("user3", "nonexistinguser", "user1", "user3")))
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.length()").isEqualTo(4)
+				.jsonPath("$[0].id").isEqualTo("user3")
+				.jsonPath("$[0].found").isEqualTo(true)
+				.jsonPath("$[0].item.name").isEqualTo("Walter Iskugel")
+				.jsonPath("$[1].id").isEqualTo("nonexistinguser")
+				.jsonPath("$[1].found").isEqualTo(false)
+				.jsonPath("$[2].item.userId").isEqualTo("user1")
+				.jsonPath("$[2].item.roles[0].rolename").isEqualTo("R1")
+				.jsonPath("$[3].item.userId").isEqualTo("user3");
+
+		webTestClient.post().uri("/api/role/_mget")
+				.contentType(MediaType.APPLICATION_JSON)
+				.syncBody(new MultiGet(Arrays.asList("1-1-1-1-2", "nonexistingrole", "1-1-1-1-1")))
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$[0].item.rolename").isEqualTo("R2")
+				.jsonPath("$[1].found").isEqualTo(false)
+				.jsonPath("$[2].item.rolename").isEqualTo("R1");
+
+		webTestClient.post().uri("/api/user/_mget")
+				.contentType(MediaType.APPLICATION_JSON)
+				.syncBody(new MultiGet(IntStream.range(0, UserRoleServiceApplication.MAX_PAGE_SIZE + 1)
+						.mapToObj(i -> "user" + i)
+						.collect(Collectors.toList())))
+				.exchange()
+				.expectStatus().isBadRequest();
+	}
+
+	@Test
+	public void test_mget_reads_users_and_their_roles_in_one_query_each() {
+		assumeMongo();
+		roleCache.invalidate("1-1-1-1-1");
+
+		mongoQueryCounter.reset();
+		webTestClient.post().uri("/api/user/_mget")
+				.contentType(MediaType.APPLICATION_JSON)
+				.syncBody(new MultiGet(Arrays.asList("user1", "user2", "user3")))
+				.exchange()
+				.expectStatus().isOk();
+		assertEquals(2, mongoQueryCounter.reset());
+	}
+
+	@Test
+	public void test_fields_select_what_users_and_roles_are_answered_with() {
+		webTestClient.get().uri("/api/user/user1?fields=userId,roles.id")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.userId").isEqualTo("user1")
+				.jsonPath("$.name").doesNotExist()
+				.jsonPath("$.roles[0].id").isEqualTo("1-1-1-1-1")
+				.jsonPath("$.roles[0].rolename").doesNotExist();
+
+		webTestClient.get().uri("/api/user/user1?fields=name,roles.rolename")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.userId").doesNotExist()
+				.jsonPath("$.name").isEqualTo("Karl Benknäckare")
+				.jsonPath("$.roles[0].id").doesNotExist()
+				.jsonPath("$.roles[0].rolename").isEqualTo("R1");
+
+		webTestClient.get().uri("/api/user?fields=userId&limit=2")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueMatches(HttpHeaders.LINK, ".*fields=userId.*")
+				.expectBody()
+				.jsonPath("$.length()").isEqualTo(2)
+				.jsonPath("$[0].userId").isNotEmpty()
+				.jsonPath("$[0].roles").doesNotExist();
+
+		webTestClient.get().uri("/api/role/1-1-1-1-2?fields=rolename")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.rolename").isEqualTo("R2")
+				.jsonPath("$.description").doesNotExist();
+
+		webTestClient.get().uri("/api/user/user1?fields=password")
+				.exchange()
+				.expectStatus().isBadRequest();
+	}
+
+	@Test
+	public void test_fields_without_role_details_skip_role_resolution() {
+		assumeMongo();
+		roleCache.invalidate("1-1-1-1-1");
+
+		mongoQueryCounter.reset();
+		webTestClient.get().uri("/api/role/1-1-1-1-1/users?fields=userId,roles.id")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$[0].userId").isEqualTo("user1")
+				.jsonPath("$[0].roles[0].id").isEqualTo("1-1-1-1-1");
+		assertEquals(1, mongoQueryCounter.reset());
+	}
+
+	private void deleteUsers(String idPrefix) {
+		userRepository.deleteAll(userRepository.findAll()
+				.filter(user -> user.getUserId().startsWith(idPrefix))).block();
+	}
+
+	// Database call counts only apply to the Mongo storage engine
+	private void assumeMongo() {
+		Assume.assumeTrue("mongo".equals(storageEngine));
+	}
+
+	@Test
+	public void test_get_user_by_id_resolves_roles_from_cache() {
+		assumeMongo();
+		webTestClient.get().uri("/api/user/user1")
+				.exchange()
+				.expectStatus().isOk();
+
+		mongoQueryCounter.reset();
+		webTestClient.get().uri("/api/user/user1")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.roles[0].id").isEqualTo("1-1-1-1-1")
+				.jsonPath("$.roles[0].rolename").isEqualTo("R1");
+
+		assertEquals(1, mongoQueryCounter.reset());
+	}
+
+	@Test
+	public void test_roles_modified_after_being_cached_leave_the_cache_alone() {
+		roleCache.invalidate("1-1-1-1-1");
+		Role listed = roleService.findAll()
+				.filter(role -> "1-1-1-1-1".equals(role.getId()))
+				.blockFirst();
+		assertNotNull(listed);
+		listed.setRolename("Ändrad");
+
+		Role cached = roleService.findById("1-1-1-1-1").block();
+		assertNotNull(cached);
+		assertNotSame(listed, cached);
+		assertEquals("R1", cached.getRolename());
+	}
+
+	@Test
+	public void test_user_list_query_count_is_independent_of_user_and_role_count() {
+		assumeMongo();
+		int small = countQueriesForUserList(5, 2);
+		// More users than one role resolution batch; a page still resolves its roles with one query
+		int large = countQueriesForUserList(2 * UserService.ROLE_JOIN_BATCH_SIZE + 1, 50);
+
+		assertEquals(small, large);
+	}
+
+	private int countQueriesForUserList(int userCount, int roleCount) {
+		List<Role> roles = IntStream.range(0, roleCount)
+				.mapToObj(i -> Role.builder().id("qc-role-" + i).rolename("QC" + i).build())
+				.collect(Collectors.toList());
+		List<User> users = IntStream.range(0, userCount)
+				.mapToObj(i -> User.builder().userId("qc-user-" + i).name("Testanvändare " + i).roles(roles).build())
+				.collect(Collectors.toList());
+		roleRepository.saveAll(roles).blockLast();
+		userRepository.saveAll(users).blockLast();
+		try {
+			mongoQueryCounter.reset();
+			webTestClient.get().uri("/api/user")
+					.exchange()
+					.expectStatus().isOk()
+					.expectBodyList(User.class)
+					.consumeWith(result -> {
+						User user = result.getResponseBody().stream()
+								.filter(u -> "qc-user-0".equals(u.getUserId()))
+								.findFirst().orElse(null);
+						assertNotNull(user);
+						assertEquals(roleCount, user.getRoles().size());
+						assertEquals("QC0", user.getRoles().get(0).getRolename());
+					});
+			return mongoQueryCounter.reset();
+		} finally {
+			userRepository.deleteAll(users).block();
+			roleRepository.deleteAll(roles).block();
+		}
+	}
 }